@@ -0,0 +1,88 @@
+package com.dezen.riccardo.smshandler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default SmsMetrics, keeping everything in preallocated atomic arrays so that recording never
+ * allocates nor locks. Latencies are counted in power of two buckets: bucket b holds the durations
+ * in [2^(b-1), 2^b) nanoseconds, so percentiles are accurate within a factor of two.
+ */
+public class HistogramSmsMetrics implements SmsMetrics {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicLongArray gauges = new AtomicLongArray(GAUGE_COUNT);
+    //BUCKETS consecutive buckets for each stage.
+    private final AtomicLongArray histograms = new AtomicLongArray(STAGE_COUNT * BUCKETS);
+    private final AtomicLongArray latencySums = new AtomicLongArray(STAGE_COUNT);
+
+    @Override
+    public void count(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    @Override
+    public void recordLatency(int stage, long nanos) {
+        int bucket = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+        histograms.incrementAndGet(stage * BUCKETS + bucket);
+        latencySums.addAndGet(stage, Math.max(0, nanos));
+    }
+
+    @Override
+    public void setGauge(int gauge, long value) {
+        gauges.set(gauge, value);
+    }
+
+    /**
+     * @param counter one of the COUNTER constants.
+     * @return the current value of the counter.
+     */
+    public long getCount(int counter){
+        return counters.get(counter);
+    }
+
+    /**
+     * @param gauge one of the GAUGE constants.
+     * @return the latest value of the gauge.
+     */
+    public long getGauge(int gauge){
+        return gauges.get(gauge);
+    }
+
+    /**
+     * @param stage one of the STAGE constants.
+     * @return how many durations were recorded for the stage.
+     */
+    public long getLatencyCount(int stage){
+        long count = 0;
+        for(int b = 0; b < BUCKETS; b++) count += histograms.get(stage * BUCKETS + b);
+        return count;
+    }
+
+    /**
+     * @param stage one of the STAGE constants.
+     * @return the mean duration of the stage in nanoseconds, 0 if none was recorded.
+     */
+    public long getMeanLatency(int stage){
+        long count = getLatencyCount(stage);
+        return count == 0 ? 0 : latencySums.get(stage) / count;
+    }
+
+    /**
+     * @param stage one of the STAGE constants.
+     * @param percentile the percentile, between 0 and 100.
+     * @return an upper bound of the given percentile of the durations of the stage, in nanoseconds,
+     * 0 if none was recorded.
+     */
+    public long getLatencyPercentile(int stage, double percentile){
+        long count = getLatencyCount(stage);
+        if(count == 0) return 0;
+        long rank = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++){
+            seen += histograms.get(stage * BUCKETS + b);
+            if(seen >= rank && seen > 0) return b == 63 ? Long.MAX_VALUE : 1L << b;
+        }
+        return Long.MAX_VALUE;
+    }
+}
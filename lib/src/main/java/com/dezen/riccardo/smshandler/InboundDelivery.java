@@ -0,0 +1,117 @@
+package com.dezen.riccardo.smshandler;
+
+import android.os.SystemClock;
+
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An incoming message handed directly to the running handlers, instead of being re-broadcast.
+ * The message is either consumed by a listener or persisted, never both and never neither: the
+ * handlers claim it with a compare-and-set before calling their listeners, and whoever settles it
+ * last decides, so that a handler losing its listeners between the handoff and the delivery makes
+ * the message fall back to the database. The callback is told once the message is settled.
+ */
+final class InboundDelivery {
+    static final int PENDING = 0;
+    //Claimed by at least one handler, whose listeners are being called.
+    static final int DELIVERING = 1;
+    static final int CONSUMED = 2;
+    static final int PERSISTED = 3;
+
+    /**
+     * Interface meant to be implemented by whoever hands the message off.
+     */
+    interface Callback {
+        /**
+         * Method called once, when the message is settled.
+         * @param delivery the settled message.
+         * @param consumed whether a listener consumed the message.
+         * @param mustPersist whether the message was neither consumed nor already written by a
+         *                    handler, and must be written by the callback.
+         */
+        void onSettled(InboundDelivery delivery, boolean consumed, boolean mustPersist);
+    }
+
+    final SmsEntity sms;
+    //When the message was handed off, in elapsedRealtimeNanos.
+    final long handedAt = SystemClock.elapsedRealtimeNanos();
+    private final Callback callback;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    //Handlers holding the message, plus the handoff itself until every handler got it.
+    private final AtomicInteger holders = new AtomicInteger(1);
+    private volatile boolean consumed;
+    private volatile boolean stored;
+
+    /**
+     * @param sms the message.
+     * @param callback the callback told when the message is settled, null if nobody needs to know,
+     *                 e.g. for messages submitted directly to the scheduler.
+     */
+    InboundDelivery(SmsEntity sms, Callback callback){
+        this.sms = sms;
+        this.callback = callback;
+    }
+
+    /**
+     * Method called by a handler taking the message, before it's released.
+     */
+    void hold(){
+        holders.incrementAndGet();
+    }
+
+    /**
+     * Method claiming the message for delivery. Several handlers may claim the same message.
+     * @return true if the listeners may be called, false if the message was persisted instead.
+     */
+    boolean begin(){
+        while(true){
+            int current = state.get();
+            if(current == DELIVERING) return true;
+            if(current != PENDING) return false;
+            if(state.compareAndSet(PENDING, DELIVERING)) return true;
+        }
+    }
+
+    /**
+     * Method called by a handler once it's done with the message.
+     * @param consumed whether the handler's listeners were called.
+     */
+    void release(boolean consumed){
+        if(consumed) this.consumed = true;
+        if(holders.decrementAndGet() == 0) settle();
+    }
+
+    /**
+     * Method called by a handler which wrote its own copy of the message to the database, to be
+     * delivered later.
+     */
+    void releaseStored(){
+        stored = true;
+        release(false);
+    }
+
+    /**
+     * Method persisting the message in place of the handlers, if none of them claimed or wrote it yet.
+     * The callback is not called for such a message.
+     * @return true if the caller must write the message.
+     */
+    boolean persistIfPending(){
+        return !stored && state.compareAndSet(PENDING, PERSISTED);
+    }
+
+    int getState(){
+        return state.get();
+    }
+
+    private void settle(){
+        int target = consumed ? CONSUMED : PERSISTED;
+        while(true){
+            int current = state.get();
+            if(current == CONSUMED || current == PERSISTED) return;
+            if(state.compareAndSet(current, target)) break;
+        }
+        if(callback != null) callback.onSettled(this, target == CONSUMED, target == PERSISTED && !stored);
+    }
+}
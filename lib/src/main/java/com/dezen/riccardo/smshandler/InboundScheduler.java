@@ -0,0 +1,344 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Orders the incoming messages of a SmsHandler before they reach its listeners. Every sender has
+ * its own queues, served in round-robin so that a noisy sender can't delay the others. Messages
+ * marked as urgent, see {@link SmsHandler#isUrgent}, are served HIGH_PRIORITY_WEIGHT times as often
+ * as normal ones. At most MAX_HELD_PER_SENDER normal messages per sender are held in memory: the
+ * following ones are written to the database and read back, in order, once the sender's queue is empty.
+ * Messages from the same sender with the same priority are always delivered in order of arrival.
+ * Every message is released once delivered or spilled, see {@link InboundDelivery}. Spilled messages
+ * read back and then not consumed, e.g. because the last listener was removed, are written back
+ * and left to {@link SmsHandler#drainUnreadMessages}.
+ */
+class InboundScheduler {
+    static final int MAX_HELD_PER_SENDER = 32;
+    static final int HIGH_PRIORITY_WEIGHT = 4;
+    //Longest time a single run of drainTask keeps delivering messages.
+    private static final long DRAIN_SLICE_NANOS = 4 * 1000 * 1000;
+    //Writes and reads back the spilled messages of all the schedulers, in submission order.
+    private static final ExecutorService spillExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Interface meant to be implemented by whoever consumes the scheduled messages.
+     */
+    interface Sink {
+        /**
+         * @return true if the message was consumed, false if there was nobody to consume it.
+         */
+        boolean deliver(String from, String message, int subscriptionId);
+    }
+
+    private final Sink sink;
+    private volatile Executor executor;
+    //Application Context used to reach the database, messages are only spilled once it's known.
+    private volatile Context context;
+
+    //Everything below is guarded by lock.
+    private final Object lock = new Object();
+    private final Map<String, Sender> senders = new HashMap<>();
+    //Senders with urgent or normal messages held in memory, in the order they will be served.
+    private final ArrayDeque<Sender> urgentRing = new ArrayDeque<>();
+    private final ArrayDeque<Sender> normalRing = new ArrayDeque<>();
+    //Number of urgent messages delivered since the last normal one.
+    private int urgentStreak;
+    //Whether drainTask is scheduled or running.
+    private boolean draining;
+
+    private static class Sender {
+        final String address;
+        final ArrayDeque<InboundDelivery> urgent = new ArrayDeque<>();
+        final ArrayDeque<InboundDelivery> normal = new ArrayDeque<>();
+        //Ids of the spilled messages in the database, in order of arrival.
+        final ArrayDeque<Long> spilledIds = new ArrayDeque<>();
+        //Spilled messages not written yet.
+        int pendingSpills;
+        boolean reloading;
+
+        Sender(String address){
+            this.address = address;
+        }
+
+        boolean isSpilling(){
+            return pendingSpills > 0 || !spilledIds.isEmpty();
+        }
+
+        boolean isIdle(){
+            return urgent.isEmpty() && normal.isEmpty() && !isSpilling() && !reloading;
+        }
+    }
+
+    /**
+     * Task delivering messages for up to DRAIN_SLICE_NANOS, then scheduling itself again, so that
+     * other tasks on the same executor, such as sent and delivered results, are not held back by a
+     * long backlog. Delivering more than one message per run also bounds the recursion when the
+     * executor runs tasks on the calling thread.
+     */
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            boolean drained = false;
+            try{
+                do{
+                    InboundDelivery next;
+                    synchronized (lock){
+                        next = poll();
+                        if(next == null){
+                            draining = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    deliver(next);
+                }while(System.nanoTime() - start < DRAIN_SLICE_NANOS);
+            }
+            finally{
+                if(!drained) executor.execute(this);
+            }
+        }
+    };
+
+    /**
+     * Callback of the messages read back from the database, which were deleted when read back:
+     * those no listener consumed are written back with their own id, so that their order is kept.
+     */
+    private final InboundDelivery.Callback writeBack = new InboundDelivery.Callback() {
+        @Override
+        public void onSettled(final InboundDelivery delivery, boolean consumed, boolean mustPersist) {
+            if(!mustPersist) return;
+            spillExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<SmsEntity> batch = Collections.singletonList(delivery.sms);
+                    try{
+                        SmsDatabase.getInstance(context).insertSms(batch);
+                    }
+                    catch(RuntimeException e){
+                        Log.e("InboundScheduler", "Write back failed, deferring to WorkManager", e);
+                        SmsPersistWorker.enqueue(context, batch, true);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @param sink the consumer of the messages.
+     * @param executor the executor the sink is called on, one message at a time.
+     */
+    InboundScheduler(Sink sink, Executor executor){
+        this.sink = sink;
+        this.executor = executor;
+    }
+
+    void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+
+    void setContext(Context context){
+        this.context = context;
+    }
+
+    /**
+     * Method queueing an incoming message for delivery.
+     * @param from the originating address.
+     * @param message the body of the message.
+     * @param subscriptionId the subscription the message was received on.
+     */
+    void submit(String from, String message, int subscriptionId){
+        SmsEntity sms = new SmsEntity(from, message, System.currentTimeMillis());
+        sms.subscriptionId = subscriptionId;
+        submit(new InboundDelivery(sms, null));
+    }
+
+    /**
+     * Method queueing an incoming message for delivery, releasing it once delivered or spilled.
+     * @param delivery the message, held on behalf of this scheduler.
+     */
+    void submit(InboundDelivery delivery){
+        SmsEntity sms = delivery.sms;
+        boolean start;
+        synchronized (lock){
+            Sender sender = senders.get(sms.address);
+            if(sender == null){
+                sender = new Sender(sms.address);
+                senders.put(sms.address, sender);
+            }
+            if(SmsHandler.isUrgent(sms.body)){
+                if(sender.urgent.isEmpty()) urgentRing.add(sender);
+                sender.urgent.add(delivery);
+            }
+            else if(context != null && (sender.isSpilling() || sender.normal.size() >= MAX_HELD_PER_SENDER)){
+                //later messages follow the spilled ones, so that the sender's order is kept
+                sender.pendingSpills++;
+                spillExecutor.execute(new SpillTask(sender, delivery));
+                maybeReload(sender);
+                return;
+            }
+            else{
+                if(sender.normal.isEmpty()) normalRing.add(sender);
+                sender.normal.add(delivery);
+            }
+            start = startDraining();
+        }
+        //outside of the lock, since the executor may run the task right away
+        if(start) executor.execute(drainTask);
+    }
+
+    /**
+     * Method handing a message to the sink, unless it was persisted meanwhile, then releasing it.
+     */
+    private void deliver(InboundDelivery delivery){
+        boolean consumed = false;
+        try{
+            if(delivery.begin())
+                consumed = sink.deliver(delivery.sms.address, delivery.sms.body, delivery.sms.subscriptionId);
+        }
+        finally{
+            delivery.release(consumed);
+        }
+    }
+
+    /**
+     * Method choosing the next message: urgent messages first, up to HIGH_PRIORITY_WEIGHT in a row
+     * while normal messages are waiting, senders in round-robin within each priority.
+     * @return the next message, null if none is held in memory.
+     */
+    private InboundDelivery poll(){
+        Sender sender;
+        InboundDelivery next;
+        if(!urgentRing.isEmpty() && (normalRing.isEmpty() || urgentStreak < HIGH_PRIORITY_WEIGHT)){
+            sender = urgentRing.poll();
+            next = sender.urgent.poll();
+            if(!sender.urgent.isEmpty()) urgentRing.add(sender);
+            urgentStreak++;
+        }
+        else if(!normalRing.isEmpty()){
+            sender = normalRing.poll();
+            next = sender.normal.poll();
+            if(!sender.normal.isEmpty()) normalRing.add(sender);
+            else maybeReload(sender);
+            urgentStreak = 0;
+        }
+        else return null;
+        if(sender.isIdle()) senders.remove(sender.address);
+        return next;
+    }
+
+    /**
+     * @return true if drainTask must be scheduled by the caller, once it releases the lock.
+     */
+    private boolean startDraining(){
+        if(draining) return false;
+        draining = true;
+        return true;
+    }
+
+    /**
+     * Method reading back the spilled messages of a sender, once the ones in memory are delivered.
+     * Runs after the pending spills, since they share the executor.
+     */
+    private void maybeReload(Sender sender){
+        if(!sender.normal.isEmpty() || sender.reloading || !sender.isSpilling()) return;
+        sender.reloading = true;
+        spillExecutor.execute(new ReloadTask(sender));
+    }
+
+    private class SpillTask implements Runnable {
+        private final Sender sender;
+        private final InboundDelivery delivery;
+
+        SpillTask(Sender sender, InboundDelivery delivery){
+            this.sender = sender;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public void run() {
+            if(delivery.getState() == InboundDelivery.PERSISTED){
+                //written meanwhile by SmsReceiver, it will be read by drainUnreadMessages
+                synchronized (lock){
+                    sender.pendingSpills--;
+                    maybeReload(sender);
+                    if(sender.isIdle()) senders.remove(sender.address);
+                }
+                delivery.release(false);
+                return;
+            }
+            long id = -1;
+            try{
+                id = SmsDatabase.getInstance(context).insertSms(delivery.sms);
+            }
+            catch(RuntimeException e){
+                Log.e("InboundScheduler", "Spill failed, holding message in memory", e);
+            }
+            boolean start = false;
+            synchronized (lock){
+                sender.pendingSpills--;
+                if(id >= 0) sender.spilledIds.add(id);
+                else{
+                    if(sender.normal.isEmpty()) normalRing.add(sender);
+                    sender.normal.add(delivery);
+                    start = startDraining();
+                }
+            }
+            //the spilled copy is delivered once read back
+            if(id >= 0) delivery.releaseStored();
+            if(start) executor.execute(drainTask);
+        }
+    }
+
+    private class ReloadTask implements Runnable {
+        private final Sender sender;
+
+        ReloadTask(Sender sender){
+            this.sender = sender;
+        }
+
+        @Override
+        public void run() {
+            List<Long> ids = new ArrayList<>();
+            synchronized (lock){
+                while(ids.size() < MAX_HELD_PER_SENDER && !sender.spilledIds.isEmpty())
+                    ids.add(sender.spilledIds.poll());
+            }
+            SmsEntity[] messages = new SmsEntity[0];
+            try{
+                //messages taken meanwhile by drainUnreadMessages are simply missing
+                if(!ids.isEmpty()) messages = SmsDatabase.getInstance(context).takeSmsByIds(ids);
+            }
+            catch(RuntimeException e){
+                Log.e("InboundScheduler", "Reload failed, messages left to drainUnreadMessages", e);
+            }
+            boolean start = false;
+            synchronized (lock){
+                sender.reloading = false;
+                if(messages.length > 0){
+                    if(sender.normal.isEmpty()) normalRing.add(sender);
+                    for(SmsEntity sms : messages) sender.normal.add(new InboundDelivery(sms, writeBack));
+                    start = startDraining();
+                }
+                else maybeReload(sender);
+                if(sender.isIdle()) senders.remove(sender.address);
+            }
+            if(start) executor.execute(drainTask);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.dezen.riccardo.smshandler;
+
+/**
+ * Lightweight, immutable copy of a row of the system sms inbox.
+ */
+public class InboxMessage {
+    //The _ID of the row in the system provider.
+    public final long id;
+    public final String address;
+    public final String body;
+    //The time the message was received, in milliseconds since epoch.
+    public final long date;
+    //The service center timestamp of the message, in milliseconds since epoch.
+    public final long dateSent;
+    //The subscription the message was received on, SubscriptionRouter.NO_SUBSCRIPTION if unknown.
+    public final int subscriptionId;
+
+    public InboxMessage(long id, String address, String body, long date, long dateSent){
+        this(id, address, body, date, dateSent, SubscriptionRouter.NO_SUBSCRIPTION);
+    }
+
+    public InboxMessage(long id, String address, String body, long date, long dateSent, int subscriptionId){
+        this.id = id;
+        this.address = address;
+        this.body = body;
+        this.date = date;
+        this.dateSent = dateSent;
+        this.subscriptionId = subscriptionId;
+    }
+}
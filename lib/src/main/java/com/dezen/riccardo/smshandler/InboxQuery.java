@@ -0,0 +1,102 @@
+package com.dezen.riccardo.smshandler;
+
+import android.provider.Telephony;
+
+import java.util.List;
+
+/**
+ * Filters for reading the system sms inbox through {@link SmsUtils#readInbox}. Every filter is
+ * optional, setters can be chained:
+ * <pre>new InboxQuery().afterId(lastSeen).appKeyOnly(true).limit(100)</pre>
+ */
+public class InboxQuery {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    long afterId = -1;
+    String address = null;
+    long fromDate = -1;
+    long toDate = -1;
+    boolean appKeyOnly = false;
+    int limit = -1;
+    int pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * @param id only messages with a greater _ID are read.
+     */
+    public InboxQuery afterId(long id){
+        afterId = id;
+        return this;
+    }
+
+    /**
+     * @param address only messages coming from this address are read.
+     */
+    public InboxQuery address(String address){
+        this.address = address;
+        return this;
+    }
+
+    /**
+     * @param from only messages received at or after this time are read, in milliseconds since epoch.
+     * @param to only messages received before this time are read, in milliseconds since epoch.
+     */
+    public InboxQuery dateRange(long from, long to){
+        fromDate = from;
+        toDate = to;
+        return this;
+    }
+
+    /**
+     * @param appKeyOnly whether only messages starting with SmsHandler.APP_KEY should be read.
+     */
+    public InboxQuery appKeyOnly(boolean appKeyOnly){
+        this.appKeyOnly = appKeyOnly;
+        return this;
+    }
+
+    /**
+     * @param limit the maximum number of messages to be read, unlimited if not positive.
+     */
+    public InboxQuery limit(int limit){
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @param pageSize how many rows are read from the provider with each query.
+     * @throws IllegalArgumentException if pageSize is not positive.
+     */
+    public InboxQuery pageSize(int pageSize){
+        if(pageSize < 1) throw new IllegalArgumentException("Page size must be positive.");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Method building the selection clause for the rows following lastId.
+     * @param lastId the greatest _ID already read.
+     * @param args list the selection arguments are added to.
+     * @return the selection clause.
+     */
+    String selection(long lastId, List<String> args){
+        StringBuilder sb = new StringBuilder(Telephony.Sms._ID).append(" > ?");
+        args.add(Long.toString(lastId));
+        if(address != null){
+            sb.append(" AND ").append(Telephony.Sms.ADDRESS).append(" = ?");
+            args.add(address);
+        }
+        if(fromDate >= 0){
+            sb.append(" AND ").append(Telephony.Sms.DATE).append(" >= ?");
+            args.add(Long.toString(fromDate));
+        }
+        if(toDate >= 0){
+            sb.append(" AND ").append(Telephony.Sms.DATE).append(" < ?");
+            args.add(Long.toString(toDate));
+        }
+        if(appKeyOnly){
+            sb.append(" AND ").append(Telephony.Sms.BODY).append(" LIKE ?");
+            args.add(SmsHandler.APP_KEY + "%");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+import com.dezen.riccardo.smshandler.database.SyncStateEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the app in sync with the system sms inbox, ingesting the messages starting with
+ * SmsHandler.APP_KEY which SmsReceiver missed, e.g. while the app was stopped. The greatest _ID
+ * processed is persisted in the library's database, so that every sync only reads rows added since
+ * the previous one. Changes to the provider are observed while started, and bursts of changes are
+ * coalesced into a single sync. Requires the READ_SMS permission.
+ */
+public class InboxSyncer {
+    public static final long DEFAULT_DEBOUNCE_MS = 500;
+    //Key of the inbox high-water mark in the sync_state table.
+    private static final String SYNC_KEY = "inbox";
+
+    private final Context context;
+    private final long debounceMs;
+    private HandlerThread thread;
+    private Handler handler;
+    private ContentObserver observer;
+
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    /**
+     * @param context any Context, only its application Context is retained.
+     */
+    public InboxSyncer(Context context){
+        this(context, DEFAULT_DEBOUNCE_MS);
+    }
+
+    /**
+     * @param context any Context, only its application Context is retained.
+     * @param debounceMs how long to wait after a change for more changes before syncing.
+     */
+    public InboxSyncer(Context context, long debounceMs){
+        this.context = context.getApplicationContext();
+        this.debounceMs = debounceMs;
+    }
+
+    /**
+     * Method starting to observe the inbox, and syncing right away. Does nothing if already started.
+     */
+    public synchronized void start(){
+        if(thread != null) return;
+        thread = new HandlerThread("InboxSyncer");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                //restart the countdown, so that a burst of changes results in a single sync
+                handler.removeCallbacks(syncTask);
+                handler.postDelayed(syncTask, debounceMs);
+            }
+        };
+        context.getContentResolver().registerContentObserver(Telephony.Sms.CONTENT_URI, true, observer);
+        handler.post(syncTask);
+    }
+
+    /**
+     * Method to stop observing the inbox. Pending syncs are dropped.
+     */
+    public synchronized void stop(){
+        if(thread == null) return;
+        context.getContentResolver().unregisterContentObserver(observer);
+        handler.removeCallbacks(syncTask);
+        thread.quitSafely();
+        thread = null;
+        handler = null;
+        observer = null;
+    }
+
+    /**
+     * Method requesting an immediate sync. Does nothing if not started.
+     */
+    public synchronized void syncNow(){
+        if(handler == null) return;
+        handler.removeCallbacks(syncTask);
+        handler.post(syncTask);
+    }
+
+    /**
+     * Method reading the rows added since the last sync and ingesting those starting with APP_KEY.
+     * The high-water mark is only advanced once they are settled, so that a process dying meanwhile
+     * reads them again. On the first sync ever no message is ingested: the high-water mark is just
+     * set to the latest row.
+     */
+    private void sync(){
+        final SmsDatabase db = SmsDatabase.getInstance(context);
+        SyncStateEntity state = db.syncState().get(SYNC_KEY);
+        long latestId = getLatestInboxId();
+        if(state == null){
+            db.syncState().put(new SyncStateEntity(SYNC_KEY, latestId, System.currentTimeMillis()));
+            return;
+        }
+        if(latestId <= state.lastId) return;
+        final List<SmsEntity> messages = new ArrayList<>();
+        final long[] lastDate = {state.lastDate};
+        long lastId = SmsUtils.readInbox(context, new InboxQuery().afterId(state.lastId).appKeyOnly(true),
+                new SmsUtils.OnInboxMessageListener() {
+                    @Override
+                    public boolean onInboxMessage(InboxMessage message) {
+                        SmsEntity sms = new SmsEntity(message.address, message.body, System.currentTimeMillis());
+                        sms.sentTimestamp = message.dateSent;
+                        sms.subscriptionId = message.subscriptionId;
+                        messages.add(sms);
+                        lastDate[0] = message.date;
+                        return true;
+                    }
+                });
+        if(!messages.isEmpty()){
+            Log.d("InboxSyncer", "Ingesting " + messages.size() + " messages");
+            try{
+                //the mark only moves past messages which are settled
+                SmsReceiver.ingestAndWait(context, messages);
+            }
+            catch(InterruptedException e){
+                Log.w("InboxSyncer", "Interrupted while ingesting, syncing again next time", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        //rows not starting with APP_KEY don't need to be read again either
+        db.syncState().put(new SyncStateEntity(SYNC_KEY, Math.max(lastId, latestId), lastDate[0]));
+    }
+
+    /**
+     * @return the greatest _ID in the inbox, -1 if the inbox is empty.
+     */
+    private long getLatestInboxId(){
+        Cursor cursor = SmsUtils.queryPage(context, Telephony.Sms.Inbox.CONTENT_URI,
+                new String[]{Telephony.Sms._ID}, null, null, Telephony.Sms._ID + " DESC", 1);
+        if(cursor == null) return -1;
+        try{
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+        finally{
+            cursor.close();
+        }
+    }
+}
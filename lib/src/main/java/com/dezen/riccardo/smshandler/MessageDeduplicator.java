@@ -0,0 +1,126 @@
+package com.dezen.riccardo.smshandler;
+
+import com.dezen.riccardo.smshandler.database.SeenMessageEntity;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Process-wide duplicate suppression for incoming messages, whichever path they come from: the
+ * SMS_RECEIVED broadcast, the inbox sync or a carrier retransmission. Messages are told apart by a
+ * fingerprint of their sender, service center timestamp and body. Recent fingerprints are kept in a
+ * bounded, expiring cache in memory; older ones, and those seen by previous processes, are looked up
+ * in the seen_message table through its primary key.
+ */
+final class MessageDeduplicator {
+    //Maximum number of fingerprints kept in memory, and for how long.
+    static final int MAX_RECENT = 256;
+    static final long RECENT_WINDOW_MS = 10 * 60 * 1000;
+    //How long fingerprints are kept in the database, and how often older ones are deleted.
+    static final long PERSISTED_WINDOW_MS = 48 * 60 * 60 * 1000;
+    private static final long PRUNE_INTERVAL_MS = 60 * 60 * 1000;
+
+    //Recently seen fingerprints and when, oldest first, guarded by itself.
+    private static final Map<Long, Long> recent = new LinkedHashMap<Long, Long>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_RECENT;
+        }
+    };
+    //Last time old fingerprints were deleted from the database, guarded by the class.
+    private static long lastPruneAt;
+
+    private MessageDeduplicator(){ }
+
+    /**
+     * Method dropping the messages seen within RECENT_WINDOW_MS by this process, and recording the
+     * others as seen. Doesn't touch the database, so it can be called from the main thread.
+     * @param messages the incoming messages.
+     * @return the messages not seen recently, in the same order.
+     */
+    static List<SmsEntity> filterRecent(List<SmsEntity> messages){
+        List<SmsEntity> fresh = new ArrayList<>(messages.size());
+        long now = System.currentTimeMillis();
+        synchronized (recent){
+            for(SmsEntity sms : messages){
+                Long key = fingerprint(sms);
+                Long seen = recent.get(key);
+                if(seen != null && now - seen < RECENT_WINDOW_MS) continue;
+                //reinserted, so that it becomes the newest entry
+                recent.remove(key);
+                recent.put(key, now);
+                fresh.add(sms);
+            }
+        }
+        SmsHandler.getMetrics().count(SmsMetrics.COUNTER_DUPLICATES, messages.size() - fresh.size());
+        return fresh;
+    }
+
+    /**
+     * Method dropping the messages whose fingerprint is already in the database, and adding the
+     * others, in a single transaction. Must not be called from the main thread.
+     * @param db the database holding the fingerprints.
+     * @param messages the incoming messages, usually already passed through {@link #filterRecent}.
+     * @return the messages never seen before, in the same order.
+     */
+    static List<SmsEntity> filterPersisted(final SmsDatabase db, final List<SmsEntity> messages){
+        if(messages.isEmpty()) return messages;
+        final long now = System.currentTimeMillis();
+        List<SmsEntity> fresh = db.runInTransaction(new Callable<List<SmsEntity>>() {
+            @Override
+            public List<SmsEntity> call() {
+                List<SmsEntity> fresh = new ArrayList<>(messages.size());
+                for(SmsEntity sms : messages){
+                    if(db.seenMessages().insert(new SeenMessageEntity(fingerprint(sms), now)) != -1) fresh.add(sms);
+                }
+                return fresh;
+            }
+        });
+        prune(db, now);
+        SmsHandler.getMetrics().count(SmsMetrics.COUNTER_DUPLICATES, messages.size() - fresh.size());
+        return fresh;
+    }
+
+    private static void prune(SmsDatabase db, long now){
+        synchronized (MessageDeduplicator.class){
+            if(now - lastPruneAt < PRUNE_INTERVAL_MS) return;
+            lastPruneAt = now;
+        }
+        db.seenMessages().deleteSeenBefore(now - PERSISTED_WINDOW_MS);
+    }
+
+    /**
+     * Method computing the 64 bit FNV-1a hash of the sender, service center timestamp and body of a message.
+     * @param sms the message.
+     * @return the fingerprint of the message.
+     */
+    static long fingerprint(SmsEntity sms){
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, sms.address);
+        for(int shift = 0; shift < 64; shift += 8){
+            hash ^= (sms.sentTimestamp >>> shift) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash(hash, sms.body);
+    }
+
+    private static long hash(long hash, String s){
+        if(s != null){
+            for(int i = 0; i < s.length(); i++){
+                char c = s.charAt(i);
+                hash ^= c & 0xFF;
+                hash *= 0x100000001b3L;
+                hash ^= c >>> 8;
+                hash *= 0x100000001b3L;
+            }
+        }
+        //separator, so that moving characters between fields changes the hash
+        hash ^= 0xFF;
+        return hash * 0x100000001b3L;
+    }
+}
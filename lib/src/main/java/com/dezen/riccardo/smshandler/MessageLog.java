@@ -0,0 +1,167 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+
+import com.dezen.riccardo.smshandler.database.MessageLogEntity;
+import com.dezen.riccardo.smshandler.database.SmsCipher;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional, queryable log of the incoming messages. Unread messages are deleted from the database
+ * once delivered, while the log keeps a copy of every incoming message, written along with it,
+ * until MessageLogPruneWorker deletes it according to the retention policy. Logging is off by
+ * default and must be enabled by every process, e.g. in Application.onCreate, since receivers may
+ * run in a process where no activity was started. Queries must not be called from the main thread.
+ * The log keeps plaintext bodies for its full-text index, so nothing is logged while SmsCipher is
+ * enabled.
+ */
+public class MessageLog {
+    public static final long DEFAULT_RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_ROWS = 100000;
+    //Name of the unique periodic work pruning the log.
+    static final String PRUNE_WORK_NAME = "com.dezen.riccardo.smshandler.MessageLogPrune";
+    private static final long PRUNE_INTERVAL_HOURS = 24;
+
+    private static volatile boolean enabled;
+    //Whether skipping the log because of SmsCipher was reported, so that it's reported once per process.
+    private static volatile boolean cipherReported;
+
+    private MessageLog(){ }
+
+    /**
+     * Method enabling the log for this process, and scheduling its daily pruning.
+     * The log stores bodies in plaintext, as its full-text index needs them: while SmsCipher is
+     * enabled no message is logged, so that encrypted bodies are never copied in the clear. Enabling
+     * both is allowed, and the log resumes as soon as encryption is disabled.
+     * @param context any Context.
+     * @param retentionMs how long messages are kept, in milliseconds.
+     * @param maxRows how many messages are kept at most, the oldest are deleted first.
+     * @throws IllegalArgumentException if retentionMs or maxRows are not positive.
+     */
+    public static void enable(Context context, long retentionMs, int maxRows){
+        if(retentionMs < 1 || maxRows < 1) throw new IllegalArgumentException("Retention must be positive.");
+        enabled = true;
+        if(SmsCipher.isEnabled())
+            Log.w("MessageLog", "Store encryption is enabled, messages won't be logged until it's disabled");
+        Data input = new Data.Builder()
+                .putLong(MessageLogPruneWorker.KEY_RETENTION_MS, retentionMs)
+                .putInt(MessageLogPruneWorker.KEY_MAX_ROWS, maxRows)
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(PRUNE_WORK_NAME, ExistingPeriodicWorkPolicy.REPLACE,
+                new PeriodicWorkRequest.Builder(MessageLogPruneWorker.class, PRUNE_INTERVAL_HOURS, TimeUnit.HOURS)
+                        .setInputData(input)
+                        .build());
+    }
+
+    /**
+     * Method disabling the log and its pruning. Messages already logged are kept.
+     * @param context any Context.
+     */
+    public static void disable(Context context){
+        enabled = false;
+        WorkManager.getInstance(context).cancelUniqueWork(PRUNE_WORK_NAME);
+    }
+
+    /**
+     * @return whether incoming messages are being logged by this process.
+     */
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Method logging incoming messages, if the log is enabled and SmsCipher is not. Meant to be
+     * called in the same transaction writing or checking the messages.
+     * @param db the database holding the log.
+     * @param messages the messages to be logged.
+     */
+    static void append(SmsDatabase db, List<SmsEntity> messages){
+        if(!enabled || messages.isEmpty()) return;
+        if(SmsCipher.isEnabled()){
+            //the bodies are only stored sealed, the log would hold them in the clear
+            if(!cipherReported){
+                cipherReported = true;
+                Log.w("MessageLog", "Store encryption is enabled, skipping the message log");
+            }
+            return;
+        }
+        List<MessageLogEntity> rows = new ArrayList<>(messages.size());
+        for(SmsEntity sms : messages)
+            rows.add(new MessageLogEntity(sms.address, sms.body, sms.timestamp, sms.subscriptionId));
+        db.messageLog().insert(rows);
+    }
+
+    /**
+     * Method reading a page of the messages received from an address, newest first.
+     * @param context any Context.
+     * @param address the originating address.
+     * @param after the last message of the previous page, null for the first page.
+     * @param limit the maximum number of messages to be read.
+     * @return the messages, an empty array once there are no more.
+     */
+    public static MessageLogEntity[] bySender(Context context, String address, MessageLogEntity after, int limit){
+        return SmsDatabase.getInstance(context).messageLog()
+                .loadBySender(address, beforeTimestamp(after), beforeId(after), limit);
+    }
+
+    /**
+     * Method reading a page of the messages received within a time range, newest first.
+     * @param from the start of the range, inclusive, in milliseconds since epoch.
+     * @param to the end of the range, exclusive, in milliseconds since epoch.
+     * @see #bySender(Context, String, MessageLogEntity, int)
+     */
+    public static MessageLogEntity[] byTime(Context context, long from, long to, MessageLogEntity after, int limit){
+        return SmsDatabase.getInstance(context).messageLog()
+                .loadByTime(from, to, beforeTimestamp(after), beforeId(after), limit);
+    }
+
+    /**
+     * Method reading a page of the messages containing every word of text, newest first. Words
+     * are matched whole, case insensitively, or by prefix when they end with '*'.
+     * @param text the words to look for, separated by whitespace.
+     * @see #bySender(Context, String, MessageLogEntity, int)
+     */
+    public static MessageLogEntity[] search(Context context, String text, MessageLogEntity after, int limit){
+        String match = matchQuery(text);
+        if(match.isEmpty()) return new MessageLogEntity[0];
+        return SmsDatabase.getInstance(context).messageLog()
+                .search(match, beforeTimestamp(after), beforeId(after), limit);
+    }
+
+    /**
+     * Method turning words into an FTS query matching all of them, quoting each so that the
+     * query syntax can't be injected.
+     * @param text the words to look for.
+     * @return the MATCH expression, empty if text holds no word.
+     */
+    static String matchQuery(String text){
+        StringBuilder sb = new StringBuilder();
+        for(String word : text.trim().split("\\s+")){
+            boolean prefix = word.endsWith("*");
+            word = word.replace("\"", "").replace("*", "");
+            if(word.isEmpty()) continue;
+            if(sb.length() > 0) sb.append(' ');
+            sb.append('"').append(word).append(prefix ? "*\"" : "\"");
+        }
+        return sb.toString();
+    }
+
+    private static long beforeTimestamp(MessageLogEntity after){
+        return after == null ? Long.MAX_VALUE : after.timestamp;
+    }
+
+    private static long beforeId(MessageLogEntity after){
+        return after == null ? Long.MAX_VALUE : after.id;
+    }
+}
@@ -0,0 +1,42 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.dezen.riccardo.smshandler.database.MessageLogDao;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+/**
+ * Periodic work deleting the messages of MessageLog older than its retention time, then the
+ * oldest ones beyond its maximum number of rows. Scheduled by {@link MessageLog#enable}.
+ */
+public class MessageLogPruneWorker extends Worker {
+    static final String KEY_RETENTION_MS = "retention_ms";
+    static final String KEY_MAX_ROWS = "max_rows";
+
+    public MessageLogPruneWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        long retention = getInputData().getLong(KEY_RETENTION_MS, MessageLog.DEFAULT_RETENTION_MS);
+        int maxRows = getInputData().getInt(KEY_MAX_ROWS, MessageLog.DEFAULT_MAX_ROWS);
+        try{
+            MessageLogDao log = SmsDatabase.getInstance(getApplicationContext()).messageLog();
+            int deleted = log.deleteBefore(System.currentTimeMillis() - retention);
+            deleted += log.deleteOldestBeyond(maxRows);
+            Log.d("MessageLogPruneWorker", "Pruned " + deleted + " messages");
+            return Result.success();
+        }
+        catch(RuntimeException e){
+            Log.e("MessageLogPruneWorker", "Prune failed, retrying later", e);
+            return Result.retry();
+        }
+    }
+}
@@ -1,24 +1,82 @@
 package com.dezen.riccardo.smshandler;
 
 import android.app.Notification;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 
+/**
+ * Service hiding the default sms app's notifications for messages containing SmsHandler.APP_KEY.
+ * It is notified of every notification posted on the device, so the default sms package is cached
+ * instead of being resolved through an IPC each time, and notifications from any other package are
+ * discarded before looking at their text.
+ */
 public class NotificationCatcherService extends NotificationListenerService {
+    //The default sms package change broadcast only exists from API 24, and only reaches the old and
+    //new default apps on some versions, so the cached value is also refreshed when older than this.
+    private static final long DEFAULT_PACKAGE_TTL_MS = 5 * 60 * 1000;
+
+    private volatile String defaultSmsPackage;
+    private volatile long defaultSmsPackageTime;
+
+    private final BroadcastReceiver packageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refreshDefaultSmsPackage();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N){
+            registerReceiver(packageChangedReceiver,
+                    new IntentFilter(Telephony.Sms.Intents.ACTION_DEFAULT_SMS_PACKAGE_CHANGED));
+        }
+        refreshDefaultSmsPackage();
+    }
+
+    @Override
+    public void onDestroy() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) unregisterReceiver(packageChangedReceiver);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onListenerConnected() {
+        refreshDefaultSmsPackage();
+    }
 
     @Override
     public void onNotificationPosted (StatusBarNotification sbn) {
+        if(SystemClock.elapsedRealtime() - defaultSmsPackageTime > DEFAULT_PACKAGE_TTL_MS)
+            refreshDefaultSmsPackage();
+        if(!sbn.getPackageName().equals(defaultSmsPackage)) return;
         Notification notification = sbn.getNotification();
-        String defaultSmsApplication;
-        String notificationText;
-        defaultSmsApplication = Telephony.Sms.getDefaultSmsPackage(getApplicationContext());
-        if(notification.tickerText != null){
-            notificationText = notification.tickerText.toString();
-            //Expected structure of SMS Notification:
-            // "ContactName: <#>text"
-            if(sbn.getPackageName().equals(defaultSmsApplication) && !notificationText.equals("") && notificationText.contains(SmsHandler.APP_KEY))
-                cancelNotification(sbn.getKey()); //blocks notifications
+        //Expected structure of SMS Notification:
+        // "ContactName: <#>text"
+        if(SmsUtils.containsAppKey(notification.tickerText)){
+            cancelNotification(sbn.getKey()); //blocks notifications
+            return;
         }
+        //recent sms apps don't set the ticker text, the message is in the extras
+        Bundle extras = notification.extras;
+        if(extras != null && SmsUtils.containsAppKey(extras.getCharSequence(Notification.EXTRA_TEXT)))
+            cancelNotification(sbn.getKey());
+    }
+
+    /**
+     * Method resolving the default sms package and caching it.
+     */
+    private void refreshDefaultSmsPackage(){
+        defaultSmsPackage = Telephony.Sms.getDefaultSmsPackage(getApplicationContext());
+        defaultSmsPackageTime = SystemClock.elapsedRealtime();
     }
 }
@@ -0,0 +1,63 @@
+package com.dezen.riccardo.smshandler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor running tasks on an underlying executor one at a time, in submission order, whatever
+ * the number of threads of the underlying executor.
+ */
+class SerialExecutor implements Executor {
+    private final Executor executor;
+    //Tasks waiting for the running task to complete, guarded by itself.
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+    //Whether a task is running or about to, guarded by queue.
+    private boolean running;
+
+    /**
+     * @param executor the executor actually running the tasks.
+     */
+    SerialExecutor(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * Method scheduling a task after all the previously submitted tasks.
+     * @param task the task to be run.
+     */
+    @Override
+    public void execute(Runnable task){
+        synchronized (queue){
+            if(running){
+                //the running task will start this one when done
+                queue.add(task);
+                return;
+            }
+            running = true;
+        }
+        executor.execute(new SerialTask(task));
+    }
+
+    private class SerialTask implements Runnable {
+        private final Runnable task;
+
+        SerialTask(Runnable task){
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try{
+                task.run();
+            }
+            finally{
+                Runnable next;
+                synchronized (queue){
+                    next = queue.poll();
+                    if(next == null) running = false;
+                }
+                if(next != null) executor.execute(new SerialTask(next));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.dezen.riccardo.smshandler;
+
+import android.telephony.PhoneNumberUtils;
+import android.telephony.SmsManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The same message sent to several recipients through {@link SmsHandler#sendToMany}. Recipients are
+ * normalized and deduplicated once, the message is split once and queued for all of them in a single
+ * outbox transaction, then paced by SmsSendQueue like any other message. Follows the progress of the whole
+ * broadcast: each recipient is completed once its message is sent, given up on or cancelled.
+ */
+public class SmsBroadcast {
+
+    /**
+     * Interface meant to be implemented by classes wanting to follow a broadcast. Called on the
+     * queue's thread, or on the thread cancelling the broadcast.
+     */
+    public interface OnBroadcastProgressListener {
+        /**
+         * Method called every time a recipient is completed.
+         * @param broadcast the broadcast, whose counts already include this recipient.
+         * @param destination the normalized address of the recipient.
+         * @param sent whether the message was sent to the recipient.
+         */
+        void onProgress(SmsBroadcast broadcast, String destination, boolean sent);
+    }
+
+    private final List<String> recipients;
+    private final int rejectedCount;
+    private final OnBroadcastProgressListener listener;
+    private final AtomicInteger sentCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final List<String> failedRecipients = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch done;
+    //Futures of the queued messages, set once they are queued.
+    private volatile List<Future<Boolean>> futures = Collections.emptyList();
+
+    /**
+     * @param recipients the normalized, distinct recipients.
+     * @param rejectedCount the number of invalid or duplicate addresses left out.
+     * @param listener optional listener following the broadcast.
+     */
+    SmsBroadcast(List<String> recipients, int rejectedCount, OnBroadcastProgressListener listener){
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.rejectedCount = rejectedCount;
+        this.listener = listener;
+        done = new CountDownLatch(recipients.size());
+    }
+
+    /**
+     * Method normalizing the given addresses, in order, dropping invalid and duplicate ones.
+     * @param destinations the addresses, in phone number format.
+     * @return the normalized, distinct, valid addresses.
+     */
+    static List<String> normalize(Collection<String> destinations){
+        Set<String> distinct = new LinkedHashSet<>();
+        for(String destination : destinations){
+            if(destination == null) continue;
+            String normalized = PhoneNumberUtils.normalizeNumber(destination);
+            if(PhoneNumberUtils.isGlobalPhoneNumber(normalized) && PhoneNumberUtils.isWellFormedSmsAddress(normalized))
+                distinct.add(normalized);
+        }
+        return new ArrayList<>(distinct);
+    }
+
+    /**
+     * Method dividing the body of a text message into the parts sent to every recipient, once for
+     * all of them.
+     * @param body the full text of the message, APP_KEY included.
+     * @return the parts of the message, a single one if it fits a single sms.
+     */
+    static ArrayList<String> divide(String body){
+        return SmsManager.getDefault().divideMessage(body);
+    }
+
+    void setFutures(List<Future<Boolean>> futures){
+        this.futures = futures;
+    }
+
+    /**
+     * Method called by the queue once the message to a recipient is completed.
+     */
+    void onResult(String destination, boolean sent){
+        if(sent) sentCount.incrementAndGet();
+        else{
+            failedRecipients.add(destination);
+            failedCount.incrementAndGet();
+        }
+        done.countDown();
+        if(listener != null) listener.onProgress(this, destination, sent);
+    }
+
+    /**
+     * @return the normalized, distinct recipients the message is sent to, in the order they were given.
+     */
+    public List<String> getRecipients(){
+        return recipients;
+    }
+
+    /**
+     * @return the number of addresses left out because invalid or duplicate.
+     */
+    public int getRejectedCount(){
+        return rejectedCount;
+    }
+
+    public int getSentCount(){
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of recipients whose message was given up on or cancelled.
+     */
+    public int getFailedCount(){
+        return failedCount.get();
+    }
+
+    /**
+     * @return a snapshot of the recipients whose message was given up on or cancelled, in order of completion.
+     */
+    public List<String> getFailedRecipients(){
+        synchronized (failedRecipients){
+            return new ArrayList<>(failedRecipients);
+        }
+    }
+
+    /**
+     * @return the number of recipients not completed yet.
+     */
+    public int getPendingCount(){
+        return (int)done.getCount();
+    }
+
+    public boolean isDone(){
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Method waiting for every recipient to be completed. Must not be called from the queue's thread.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of timeout.
+     * @return true if the broadcast is done, false if the timeout elapsed first.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException{
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Method cancelling the messages of the recipients not completed yet, which are completed as
+     * failed. Messages not yet handed to SmsManager are removed from the queue.
+     */
+    public void cancel(){
+        for(Future<Boolean> future : futures) future.cancel(false);
+    }
+}
@@ -0,0 +1,45 @@
+package com.dezen.riccardo.smshandler;
+
+/**
+ * Immutable event published by {@link SmsEventPublisher}: a received message, or the sent or
+ * delivered result of an outgoing one.
+ */
+public class SmsEvent {
+    public static final int TYPE_RECEIVED = 0;
+    public static final int TYPE_SENT = 1;
+    public static final int TYPE_DELIVERED = 2;
+
+    public final int type;
+    //Originating address and body of received messages, null otherwise.
+    public final String from;
+    public final String message;
+    //Subscription a received message arrived on, SubscriptionRouter.NO_SUBSCRIPTION if unknown.
+    public final int subscriptionId;
+    //Id of the outgoing message and result code of sent and delivered events, -1 and 0 otherwise.
+    public final long messageId;
+    public final int resultCode;
+    //The time the event was published, in milliseconds since epoch.
+    public final long timestamp;
+
+    private SmsEvent(int type, String from, String message, int subscriptionId, long messageId, int resultCode, long timestamp){
+        this.type = type;
+        this.from = from;
+        this.message = message;
+        this.subscriptionId = subscriptionId;
+        this.messageId = messageId;
+        this.resultCode = resultCode;
+        this.timestamp = timestamp;
+    }
+
+    static SmsEvent received(String from, String message, int subscriptionId, long timestamp){
+        return new SmsEvent(TYPE_RECEIVED, from, message, subscriptionId, -1, 0, timestamp);
+    }
+
+    static SmsEvent sent(long messageId, int resultCode){
+        return new SmsEvent(TYPE_SENT, null, null, SubscriptionRouter.NO_SUBSCRIPTION, messageId, resultCode, System.currentTimeMillis());
+    }
+
+    static SmsEvent delivered(long messageId, int resultCode){
+        return new SmsEvent(TYPE_DELIVERED, null, null, SubscriptionRouter.NO_SUBSCRIPTION, messageId, resultCode, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,480 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stream of the events of a SmsHandler with demand-based backpressure, for any number of
+ * subscribers. Publisher, Subscriber and Subscription follow the contract of
+ * java.util.concurrent.Flow, which is only available from API 30, so adapting them is a matter of
+ * delegation. Every subscriber gets events only as far as it requested them, one at a time and on
+ * the publisher's executor: events it didn't request yet are held in its own buffer of capacity
+ * events, and when that is full the overflow policy applies:
+ * <ul>
+ * <li>OVERFLOW_ERROR: the lagging subscriber is failed: its buffered events are discarded and it
+ * gets onError with an IllegalStateException instead of any further event. Other subscribers are
+ * not affected.</li>
+ * <li>OVERFLOW_DROP_OLDEST: the oldest buffered event is dropped.</li>
+ * <li>OVERFLOW_SPILL: received messages are written to a table of their own, once for all the
+ * subscribers falling behind, and read back by each of them, in order, once its buffer is empty.
+ * They were already delivered to the handler's listeners, so they are kept apart from the unread
+ * messages and never drained. A spilled message is deleted once every subscriber holding it read it
+ * back or cancelled; those left behind by a previous process are deleted before the first spill.
+ * Sent and delivered results are paced by the send queue, and are buffered beyond capacity instead.</li>
+ * </ul>
+ * Received messages are never buffered in memory beyond capacity: spilling is the only policy that
+ * neither drops them nor fails the subscriber.
+ */
+public class SmsEventPublisher implements SmsHandler.OnSmsEventListener, SmsHandler.OnSmsResultListener,
+        SmsHandler.OnSmsSubscriptionListener {
+    //Fails the lagging subscriber, see the class documentation for the other policies.
+    public static final int OVERFLOW_ERROR = 0;
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    public static final int OVERFLOW_SPILL = 2;
+    public static final int DEFAULT_CAPACITY = 256;
+    //Runs the subscribers' callbacks of every publisher not given its own executor.
+    private static final ExecutorService defaultExecutor = Executors.newCachedThreadPool();
+    //Writes and reads back the spilled messages of all the publishers, in submission order.
+    private static final ExecutorService spillExecutor = Executors.newSingleThreadExecutor();
+    //Whether the messages spilled by a previous process were deleted, only accessed on spillExecutor.
+    private static boolean purged;
+
+    /**
+     * Equivalent of java.util.concurrent.Flow.Subscriber.
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+        void onNext(SmsEvent event);
+        void onError(Throwable error);
+        void onComplete();
+    }
+
+    /**
+     * Equivalent of java.util.concurrent.Flow.Subscription.
+     */
+    public interface Subscription {
+        /**
+         * @param n how many more events the subscriber is ready to receive. Non-positive values
+         *          fail the subscription with an IllegalArgumentException.
+         */
+        void request(long n);
+        void cancel();
+    }
+
+    private final SmsHandler handler;
+    private final Context context;
+    private final int overflowPolicy;
+    private final int capacity;
+    private final Executor executor;
+    private final CopyOnWriteArrayList<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Constructor attaching the publisher to handler, running the subscribers on a shared thread pool.
+     * @see #SmsEventPublisher(SmsHandler, Context, int, int, Executor)
+     */
+    public SmsEventPublisher(@NonNull SmsHandler handler, Context context, int overflowPolicy, int capacity){
+        this(handler, context, overflowPolicy, capacity, defaultExecutor);
+    }
+
+    /**
+     * Constructor attaching the publisher to handler as one of its listeners.
+     * @param handler the handler whose events are published.
+     * @param context any Context, only needed by OVERFLOW_SPILL.
+     * @param overflowPolicy one of the OVERFLOW constants.
+     * @param capacity how many events are buffered for each subscriber.
+     * @param executor the executor running the subscribers' callbacks.
+     * @throws IllegalArgumentException if the policy is unknown, capacity is not positive or
+     * OVERFLOW_SPILL is requested with no Context.
+     */
+    public SmsEventPublisher(@NonNull SmsHandler handler, Context context, int overflowPolicy, int capacity,
+                             @NonNull Executor executor){
+        if(overflowPolicy < OVERFLOW_ERROR || overflowPolicy > OVERFLOW_SPILL)
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        if(capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+        if(overflowPolicy == OVERFLOW_SPILL && context == null)
+            throw new IllegalArgumentException("Spilling needs a Context.");
+        this.handler = handler;
+        this.context = context != null ? context.getApplicationContext() : null;
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = capacity;
+        this.executor = executor;
+        handler.addListener(this);
+    }
+
+    /**
+     * Method adding a subscriber, equivalent of java.util.concurrent.Flow.Publisher.subscribe.
+     * The subscriber only gets the events published after this call, once it requests them.
+     * Subscribers of a closed publisher are completed right away.
+     * @param subscriber the subscriber, notified through onSubscribe.
+     */
+    public void subscribe(@NonNull Subscriber subscriber){
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriptions.add(subscription);
+        if(closed) subscription.complete();
+        subscription.schedule();
+    }
+
+    /**
+     * Method detaching the publisher from its handler. Every subscriber is completed once it
+     * received the events published so far.
+     */
+    public void close(){
+        closed = true;
+        handler.removeListener(this);
+        for(EventSubscription s : subscriptions) s.complete();
+    }
+
+    /**
+     * @return the number of active subscriptions.
+     */
+    public int getSubscriberCount(){
+        return subscriptions.size();
+    }
+
+    @Override
+    public void onReceive(String from, String message, int subscriptionId) {
+        publish(SmsEvent.received(from, message, subscriptionId, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void onSent(long messageId, int resultCode) {
+        publish(SmsEvent.sent(messageId, resultCode));
+    }
+
+    @Override
+    public void onDelivered(long messageId, int resultCode) {
+        publish(SmsEvent.delivered(messageId, resultCode));
+    }
+
+    //Not called: the subscription aware and result aware variants are called instead.
+    @Override
+    public void onReceive(String from, String message) { }
+
+    @Override
+    public void onSent(int resultCode) { }
+
+    @Override
+    public void onDelivered(int resultCode) { }
+
+    private void publish(SmsEvent event){
+        Spill spill = overflowPolicy == OVERFLOW_SPILL && event.type == SmsEvent.TYPE_RECEIVED ? new Spill(event) : null;
+        boolean spilled = false;
+        for(EventSubscription s : subscriptions) spilled |= s.offer(event, spill);
+        //written once, however many subscribers fell behind
+        if(spilled) spillExecutor.execute(new SpillTask(spill));
+    }
+
+    /**
+     * Method releasing spilled messages on behalf of a subscription, deleting those which are no
+     * longer held by anyone. Only called on spillExecutor.
+     * @param released the messages the subscription no longer holds.
+     */
+    private void release(List<Spill> released){
+        List<Long> ids = new ArrayList<>();
+        for(Spill spill : released)
+            if(spill.holders.decrementAndGet() == 0 && spill.id >= 0) ids.add(spill.id);
+        if(ids.isEmpty()) return;
+        try{
+            SmsDatabase.getInstance(context).spilledEvents().deleteByIds(ids);
+        }
+        catch(RuntimeException e){
+            Log.e("SmsEventPublisher", "Could not delete released messages, left to the next process", e);
+        }
+    }
+
+    /**
+     * A received message spilled for one or more subscriptions.
+     */
+    private static class Spill {
+        //Number of subscriptions still holding the message.
+        final AtomicInteger holders = new AtomicInteger();
+        //Everything below is only accessed on spillExecutor, except event before the message is spilled.
+        //The message, dropped once written.
+        SmsEvent event;
+        //Whether the message was written, or failed to be and is kept in memory.
+        boolean settled;
+        //Id of the spilled message in the database, -1 if it couldn't be written.
+        long id = -1;
+
+        Spill(SmsEvent event){
+            this.event = event;
+        }
+    }
+
+    /**
+     * State of a single subscriber. Signals are serialized by running them from a single task
+     * at a time, scheduled through wip.
+     */
+    private class EventSubscription implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        //Number of times the task was scheduled and not run yet, the task is running while positive.
+        private final AtomicInteger wip = new AtomicInteger();
+        //Only accessed by the task.
+        private boolean started;
+
+        //Everything below is guarded by this.
+        private final ArrayDeque<SmsEvent> buffer = new ArrayDeque<>();
+        private long requested;
+        private boolean cancelled;
+        private boolean completing;
+        private Throwable error;
+        //Spilled messages held by this subscription, in order of arrival.
+        private final ArrayDeque<Spill> spills = new ArrayDeque<>();
+        private boolean reloading;
+
+        EventSubscription(Subscriber subscriber){
+            this.subscriber = subscriber;
+        }
+
+        private boolean isSpilling(){
+            return !spills.isEmpty() || reloading;
+        }
+
+        /**
+         * @param event the published event.
+         * @param spill the spill shared by the subscriptions falling behind, null if the event can't be spilled.
+         * @return true if the subscription holds the spill, which must then be written.
+         */
+        boolean offer(SmsEvent event, Spill spill){
+            synchronized (this){
+                if(cancelled || completing || error != null) return false;
+                //later messages follow the spilled ones, so that their order is kept
+                if(spill != null && (isSpilling() || buffer.size() >= capacity)){
+                    spill.holders.incrementAndGet();
+                    spills.add(spill);
+                    return true;
+                }
+                if(buffer.size() >= capacity){
+                    if(overflowPolicy == OVERFLOW_ERROR){
+                        error = new IllegalStateException("Subscriber fell behind by more than " + capacity + " events");
+                        buffer.clear();
+                    }
+                    else if(overflowPolicy == OVERFLOW_DROP_OLDEST) buffer.poll();
+                }
+                if(error == null) buffer.add(event);
+            }
+            schedule();
+            return false;
+        }
+
+        /**
+         * Method handing the spilled messages held by this subscription back to the publisher.
+         * Must be called holding the lock, the returned messages must then be released.
+         */
+        private List<Spill> dropSpills(){
+            List<Spill> dropped = new ArrayList<>(spills);
+            spills.clear();
+            return dropped;
+        }
+
+        private void release(final List<Spill> dropped){
+            if(dropped.isEmpty()) return;
+            spillExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SmsEventPublisher.this.release(dropped);
+                }
+            });
+        }
+
+        void complete(){
+            synchronized (this){
+                completing = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this){
+                if(n <= 0 && error == null) error = new IllegalArgumentException("Non-positive request " + n);
+                else requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            List<Spill> dropped;
+            synchronized (this){
+                cancelled = true;
+                buffer.clear();
+                dropped = dropSpills();
+            }
+            subscriptions.remove(this);
+            release(dropped);
+        }
+
+        void schedule(){
+            if(wip.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do{
+                if(!started){
+                    started = true;
+                    subscriber.onSubscribe(this);
+                }
+                emit();
+                missed = wip.addAndGet(-missed);
+            }while(missed != 0);
+        }
+
+        /**
+         * Method delivering the buffered events as far as requested, then the final signal if due.
+         */
+        private void emit(){
+            while(true){
+                SmsEvent next = null;
+                Throwable failure = null;
+                List<Spill> dropped = null;
+                synchronized (this){
+                    if(cancelled) return;
+                    if(error != null) failure = error;
+                    else if(requested > 0 && !buffer.isEmpty()){
+                        next = buffer.poll();
+                        if(requested != Long.MAX_VALUE) requested--;
+                    }
+                    else if(!(completing && buffer.isEmpty() && !isSpilling())){
+                        if(buffer.isEmpty()) maybeReload();
+                        return;
+                    }
+                    if(next == null){
+                        cancelled = true;
+                        dropped = dropSpills();
+                    }
+                }
+                if(next == null){
+                    subscriptions.remove(this);
+                    release(dropped);
+                    if(failure != null) subscriber.onError(failure);
+                    else subscriber.onComplete();
+                    return;
+                }
+                try{
+                    subscriber.onNext(next);
+                }
+                catch(RuntimeException e){
+                    Log.e("SmsEventPublisher", "Subscriber failed, cancelling its subscription", e);
+                    cancel();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Method reading back the spilled messages once the buffer is empty. Runs after the pending
+         * spills, since they share the executor.
+         */
+        private void maybeReload(){
+            if(reloading || spills.isEmpty()) return;
+            reloading = true;
+            spillExecutor.execute(new ReloadTask(this));
+        }
+    }
+
+    private class SpillTask implements Runnable {
+        private final Spill spill;
+
+        SpillTask(Spill spill){
+            this.spill = spill;
+        }
+
+        @Override
+        public void run() {
+            try{
+                SmsDatabase db = SmsDatabase.getInstance(context);
+                if(!purged){
+                    //nobody can read back what a previous process spilled
+                    db.spilledEvents().deleteAll();
+                    purged = true;
+                }
+                SmsEvent event = spill.event;
+                SmsEntity sms = new SmsEntity(event.from, event.message, event.timestamp);
+                sms.subscriptionId = event.subscriptionId;
+                spill.id = db.insertSpilled(sms);
+                spill.event = null;
+            }
+            catch(RuntimeException e){
+                Log.e("SmsEventPublisher", "Spill failed, holding event in memory", e);
+            }
+            spill.settled = true;
+            //the subscriptions holding it may be waiting to read it back
+            for(EventSubscription s : subscriptions) s.schedule();
+        }
+    }
+
+    private class ReloadTask implements Runnable {
+        private final EventSubscription subscription;
+
+        ReloadTask(EventSubscription subscription){
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void run() {
+            List<Spill> taken = new ArrayList<>();
+            synchronized (subscription){
+                //messages not written yet are read back once they are, see SpillTask
+                while(taken.size() < capacity && !subscription.spills.isEmpty() && subscription.spills.peek().settled)
+                    taken.add(subscription.spills.poll());
+                if(taken.isEmpty()){
+                    subscription.reloading = false;
+                    return;
+                }
+            }
+            List<Long> ids = new ArrayList<>();
+            for(Spill spill : taken) if(spill.id >= 0) ids.add(spill.id);
+            Map<Long, SmsEntity> messages = new HashMap<>();
+            RuntimeException failure = null;
+            if(!ids.isEmpty()){
+                try{
+                    for(SmsEntity sms : SmsDatabase.getInstance(context).loadSpilled(ids)) messages.put(sms.id, sms);
+                }
+                catch(RuntimeException e){
+                    Log.e("SmsEventPublisher", "Reload failed, failing the subscription", e);
+                    failure = e;
+                }
+            }
+            synchronized (subscription){
+                subscription.reloading = false;
+                if(failure != null){
+                    if(subscription.error == null) subscription.error = failure;
+                }
+                else if(!subscription.cancelled){
+                    for(Spill spill : taken){
+                        SmsEvent event = spill.event;
+                        if(spill.id >= 0){
+                            //messages which could not be decrypted are missing
+                            SmsEntity sms = messages.get(spill.id);
+                            if(sms == null) continue;
+                            event = SmsEvent.received(sms.address, sms.body, sms.subscriptionId, sms.timestamp);
+                        }
+                        subscription.buffer.add(event);
+                    }
+                }
+            }
+            release(taken);
+            subscription.schedule();
+        }
+    }
+}
@@ -1,86 +1,268 @@
 package com.dezen.riccardo.smshandler;
 
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.provider.Telephony;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.telephony.PhoneNumberUtils;
-import android.telephony.SmsManager;
-import android.telephony.SmsMessage;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.room.Room;
 
 import com.dezen.riccardo.smshandler.database.SmsDatabase;
 import com.dezen.riccardo.smshandler.database.SmsEntity;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 public class SmsHandler {
 
     public static final String APP_KEY = "<#>";
+    //Character following APP_KEY in urgent messages, delivered ahead of normal ones.
+    public static final char URGENT_MARKER = '!';
+    /**
+     * @deprecated no longer broadcast, SmsReceiver hands incoming messages directly to the handlers.
+     */
+    @Deprecated
     public static final String SMS_HANDLER_RECEIVED_BROADCAST = "";
     public static final String SMS_HANDLER_SENT_BROADCAST = "SMS_SENT";
     public static final String SMS_HANDLER_DELIVERED_BROADCAST = "SMS_DELIVERED";
     public static final String SMS_HANDLER_LOCAL_DATABASE = "sms-db";
+    public static final int DEFAULT_DRAIN_PAGE_SIZE = 50;
     /**
-     * Contains references to all listeners belonging to instances of this class
-     * which registered a receiver that listens for at least incoming sms.*/
-    private static List<OnSmsEventListener> activeIncomingListeners = new ArrayList<>();
+     * Contains references to all instances of this class which registered a receiver that listens
+     * for at least incoming sms. Copy-on-write, so that it can be read without locking.*/
+    private static final Set<SmsHandler> incomingHandlers = new CopyOnWriteArraySet<>();
+    //Executor running on a dedicated background looper, shared by all instances. Created on first use.
+    private static Executor defaultDispatchExecutor;
+    //Collects the metrics of the whole library.
+    private static volatile SmsMetrics metrics = new HistogramSmsMetrics();
+
+    //Application Context of the first instance given one, used by the instances never given their own.
+    private static volatile Context processContext;
 
-    private SmsManager smsManager;
-    private String scAddress;
-    private PendingIntent sentIntent;
-    private PendingIntent deliveryIntent;
+    //Application Context, used to reach the send queue. Null until known.
+    private Context context;
 
-    //This instance's attached listener.
-    private OnSmsEventListener listener;
+    //This instance's attached listeners, copy-on-write so that dispatch needs no locking.
+    private final CopyOnWriteArrayList<OnSmsEventListener> listeners = new CopyOnWriteArrayList<>();
+    //Runs the listeners' sent and delivered callbacks, keeping their order.
+    private volatile SerialExecutor dispatcher;
+    //Orders incoming messages by priority and sender before running the listeners' callbacks.
+    private final InboundScheduler inbound;
     //This instance's not necessarily registered BroadcastReceiver.
     private SmsEventReceiver smsEventReceiver;
-    //Whether the receiver for this instance is listening for incoming sms.
-    private boolean listeningForIncoming;
     /**
-     * Default constructor. SmsManager.getDefault() can behave unpredictably if called from a
-     * background thread in multi-SIM systems.
+     * Default constructor. The send queue needs a Context: until a receiver is registered on this
+     * instance, messages are sent through the Context of another instance, if any was given one.
      */
     public SmsHandler(){
-        smsManager = SmsManager.getDefault();
-        scAddress = null;
-        listener = null;
-        sentIntent = null;
-        deliveryIntent = null;
+        context = null;
         smsEventReceiver = new SmsEventReceiver();
-        listeningForIncoming = false;
+        dispatcher = new SerialExecutor(getDefaultDispatchExecutor());
+        inbound = new InboundScheduler(new InboundScheduler.Sink() {
+            @Override
+            public boolean deliver(String from, String message, int subscriptionId) {
+                return notifyReceived(from, message, subscriptionId);
+            }
+        }, getDefaultDispatchExecutor());
+    }
+
+    /**
+     * Constructor allowing to send messages right away.
+     * @param context any Context, only its application Context is retained.
+     */
+    public SmsHandler(Context context){
+        this();
+        this.context = context.getApplicationContext();
+        inbound.setContext(this.context);
+        if(processContext == null) processContext = this.context;
+        SmsSendQueue.getInstance(this.context);
     }
 
     private class SmsEventReceiver extends BroadcastReceiver{
         /**
-         * Default method for BroadcastReceivers. Verifies that there are incoming, sent or delivered text messages and
-         * forwards them to a listener, if avaiable.
+         * Default method for BroadcastReceivers. Verifies that there are sent or delivered text messages and
+         * forwards them to a listener, if avaiable. Incoming messages are handed off by SmsReceiver.
          */
         @Override
         public void onReceive(Context context, Intent intent) {
             if(intent.getAction() != null){
-                if(intent.getAction().equals(SMS_HANDLER_RECEIVED_BROADCAST)) {
-                    if (listener != null){
-                        for(SmsMessage message : Telephony.Sms.Intents.getMessagesFromIntent(intent)){
-                            if(message.getMessageBody().contains(APP_KEY))
-                                listener.onReceive(message.getOriginatingAddress(), message.getMessageBody());
-                        }
-                    }
-                }
+                long messageId = intent.getLongExtra(SmsSendQueue.EXTRA_MESSAGE_ID, -1);
                 if(intent.getAction().equals(SMS_HANDLER_SENT_BROADCAST)){
-                    if(listener != null) listener.onSent(getResultCode());
+                    dispatchSent(messageId, getResultCode());
                 }
                 if(intent.getAction().equals(SMS_HANDLER_DELIVERED_BROADCAST)){
-                    if(listener != null) listener.onDelivered(getResultCode());
+                    dispatchDelivered(messageId, getResultCode());
+                }
+            }
+        }
+    }
+
+    /**
+     * Methods forwarding an event to the listeners through the dispatch executor. Incoming messages
+     * are scheduled by InboundScheduler, sent and delivered results are forwarded in the order they
+     * were received.
+     */
+    void dispatchReceived(InboundDelivery delivery){
+        inbound.submit(delivery);
+    }
+
+    private void dispatchSent(final long messageId, final int resultCode){
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifySent(messageId, resultCode);
+            }
+        });
+    }
+
+    private void dispatchDelivered(final long messageId, final int resultCode){
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifyDelivered(messageId, resultCode);
+            }
+        });
+    }
+
+    /**
+     * Methods forwarding an event to every listener attached to this instance, on the calling thread.
+     * Each iterates over a snapshot of the listeners, so listeners may be added or removed concurrently.
+     * Incoming messages return whether at least one listener was called.
+     */
+    private boolean notifyReceived(String from, String message, int subscriptionId){
+        Trace.beginSection("SmsHandler.dispatch");
+        long start = SystemClock.elapsedRealtimeNanos();
+        try{
+            return notifyListeners(from, message, subscriptionId);
+        }
+        finally{
+            metrics.recordLatency(SmsMetrics.STAGE_DISPATCH, SystemClock.elapsedRealtimeNanos() - start);
+            metrics.count(SmsMetrics.COUNTER_DISPATCHED, 1);
+            Trace.endSection();
+        }
+    }
+
+    private boolean notifyListeners(String from, String message, int subscriptionId){
+        boolean notified = false;
+        SmsPayload payload = null;
+        if(SmsPayloadCodec.isPayload(message)){
+            for(OnSmsEventListener l : listeners){
+                if(l instanceof OnSmsPayloadListener){
+                    payload = decodePayload(from, message);
+                    break;
                 }
             }
         }
+        for(OnSmsEventListener l : listeners){
+            if(payload != null && l instanceof OnSmsPayloadListener) ((OnSmsPayloadListener)l).onPayloadReceived(from, payload);
+            else if(l instanceof OnSmsSubscriptionListener) ((OnSmsSubscriptionListener)l).onReceive(from, message, subscriptionId);
+            else l.onReceive(from, message);
+            notified = true;
+        }
+        return notified;
+    }
+
+    /**
+     * @return the payload carried by message, null if malformed.
+     */
+    private static SmsPayload decodePayload(String from, String message){
+        try{
+            return SmsPayloadCodec.decodeText(message);
+        }
+        catch(IllegalArgumentException e){
+            Log.w("SmsHandler", "Malformed payload from " + from, e);
+            return null;
+        }
+    }
+
+    private void notifySent(long messageId, int resultCode){
+        for(OnSmsEventListener l : listeners){
+            l.onSent(resultCode);
+            if(l instanceof OnSmsResultListener) ((OnSmsResultListener)l).onSent(messageId, resultCode);
+        }
+    }
+
+    private void notifyDelivered(long messageId, int resultCode){
+        for(OnSmsEventListener l : listeners){
+            l.onDelivered(resultCode);
+            if(l instanceof OnSmsResultListener) ((OnSmsResultListener)l).onDelivered(messageId, resultCode);
+        }
+    }
+
+    /**
+     * Method to choose where the listeners' callbacks are run. By default they run on a dedicated
+     * background looper shared by all instances, so that listeners never block the main thread.
+     * Whatever the executor, messages from the same sender with the same priority are forwarded
+     * one at a time and in order.
+     * @param executor the executor running the callbacks, see {@link #mainThreadExecutor()} to run
+     *                 them on the main thread.
+     */
+    public void setDispatchExecutor(@NonNull Executor executor){
+        dispatcher = new SerialExecutor(executor);
+        inbound.setExecutor(executor);
+    }
+
+    /**
+     * Method to choose the looper the listeners' callbacks are run on.
+     * @param handler the Handler the callbacks are posted to.
+     * @see #setDispatchExecutor(Executor)
+     */
+    public void setDispatchHandler(@NonNull Handler handler){
+        setDispatchExecutor(handlerExecutor(handler));
+    }
+
+    /**
+     * Method replacing the collector of the library's metrics, shared by every component and instance.
+     * By default metrics are collected by a {@link HistogramSmsMetrics}.
+     * @param metrics the new collector.
+     */
+    public static void setMetrics(@NonNull SmsMetrics metrics){
+        SmsHandler.metrics = metrics;
+    }
+
+    /**
+     * @return the current collector of the library's metrics.
+     */
+    public static SmsMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * @return an Executor posting the tasks to the main thread.
+     */
+    public static Executor mainThreadExecutor(){
+        return handlerExecutor(new Handler(Looper.getMainLooper()));
+    }
+
+    private static synchronized Executor getDefaultDispatchExecutor(){
+        if(defaultDispatchExecutor == null){
+            HandlerThread thread = new HandlerThread("SmsHandlerDispatch");
+            thread.start();
+            defaultDispatchExecutor = handlerExecutor(new Handler(thread.getLooper()));
+        }
+        return defaultDispatchExecutor;
+    }
+
+    private static Executor handlerExecutor(final Handler handler){
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
     }
 
     /**
@@ -98,18 +280,165 @@ public class SmsHandler {
     }
 
     /**
-     * Method that sends a text message through SmsManager
+     * Interface meant to be implemented, along with OnSmsEventListener, by listeners wanting to know
+     * which message a sent or delivered result belongs to. The id of a message is the one passed to
+     * {@link SmsSendQueue.OnSmsQueuedListener#onQueued(long)}. Parts of a multipart message are
+     * reported separately. Failed messages are retried automatically, so a failure is not necessarily final.
+     */
+    public interface OnSmsResultListener {
+        void onSent(long messageId, int resultCode);
+        void onDelivered(long messageId, int resultCode);
+    }
+
+    /**
+     * Interface meant to be implemented, along with OnSmsEventListener, by listeners wanting payloads
+     * sent through {@link #enqueuePayload} already decoded. Called instead of onReceive for payloads.
+     */
+    public interface OnSmsPayloadListener {
+        void onPayloadReceived(String from, SmsPayload payload);
+    }
+
+    /**
+     * Interface meant to be implemented, along with OnSmsEventListener, by listeners wanting to know
+     * which subscription, i.e. which SIM, a message was received on. Called instead of onReceive.
+     * The subscription is SubscriptionRouter.NO_SUBSCRIPTION when the system didn't report it.
+     */
+    public interface OnSmsSubscriptionListener {
+        void onReceive(String from, String message, int subscriptionId);
+    }
+
+    /**
+     * Method that queues a text message to be sent through SmsManager, see {@link #enqueueSMS}.
      * @param destination the destination address for the message, in phone number format
      * @param message the body of the message to be sent
-     * @return true if the destination address was valid, and therefore a sending attempt was made, false otherwise
+     * @return true if the destination address was valid, and therefore a sending attempt will be made, false otherwise
+     * @throws IllegalStateException if no Context was given to this instance nor to any other yet.
      */
     public boolean sendSMS(String destination, @NonNull String message){
-        if(message.isEmpty()) return false;
+        return enqueueSMS(destination, message, null) != null;
+    }
+
+    /**
+     * Method that queues a text message to be sent through SmsManager. Never blocks: the message is
+     * persisted and sent by SmsSendQueue's thread, paced by its rate limit. Messages longer than a
+     * single sms are divided and sent as a multipart message, which is delivered to the listener as a whole.
+     * @param destination the destination address for the message, in phone number format
+     * @param message the body of the message to be sent
+     * @param queuedListener optional listener notified with the id of the message and of every attempt to send it
+     * @return a Future completed with whether the message was eventually sent, null if the message
+     * or the destination address were not valid.
+     * @throws IllegalStateException if no Context was given to this instance nor to any other yet.
+     */
+    public Future<Boolean> enqueueSMS(String destination, @NonNull String message, SmsSendQueue.OnSmsQueuedListener queuedListener){
+        return enqueueSMS(destination, message, false, queuedListener);
+    }
+
+    /**
+     * Method that queues a text message to be sent through SmsManager, see {@link #enqueueSMS}.
+     * @param urgent whether the message should be delivered to the receiving listeners ahead of the
+     *               normal messages already waiting there. Meant for short control messages.
+     */
+    public Future<Boolean> enqueueSMS(String destination, @NonNull String message, boolean urgent,
+                                      SmsSendQueue.OnSmsQueuedListener queuedListener){
+        Context context = requireContext();
+        if(message.isEmpty()) return null;
         if(PhoneNumberUtils.isGlobalPhoneNumber(destination) && PhoneNumberUtils.isWellFormedSmsAddress(destination)){
-            smsManager.sendTextMessage(destination,scAddress,APP_KEY+message,sentIntent,deliveryIntent);
-            return true;
+            String header = urgent ? APP_KEY + URGENT_MARKER : APP_KEY;
+            return SmsSendQueue.getInstance(context).enqueue(destination, header+message, queuedListener);
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * Method to choose how outgoing messages are spread over the SIMs of multi-SIM devices.
+     * Shared by every instance, since they all send through the same queue.
+     * @param strategy one of SubscriptionRouter's STRATEGY constants.
+     * @throws IllegalStateException if no Context was given to this instance nor to any other yet.
+     * @throws IllegalArgumentException if strategy is not one of the STRATEGY constants.
+     * @see SmsSendQueue#setRoutingStrategy(int)
+     */
+    public void setRoutingStrategy(int strategy){
+        Context context = requireContext();
+        SmsSendQueue.getInstance(context).setRoutingStrategy(strategy);
+    }
+
+    /**
+     * Method that queues a structured payload to be sent, encoded by SmsPayloadCodec into as few
+     * segments as possible. Receivers get it decoded through {@link OnSmsPayloadListener}.
+     * @param destination the destination address for the message, in phone number format
+     * @param payload the payload to be sent
+     * @param dataSms whether to send the payload as a binary data sms, to the port set in build.gradle.
+     *                Payloads not fitting a single data sms are sent as text anyway.
+     * @param queuedListener optional listener notified with the id of the message and of every attempt to send it
+     * @return a Future completed with whether the message was eventually sent, null if the destination
+     * address was not valid.
+     * @throws IllegalStateException if no Context was given to this instance nor to any other yet.
+     */
+    public Future<Boolean> enqueuePayload(String destination, @NonNull SmsPayload payload, boolean dataSms,
+                                          SmsSendQueue.OnSmsQueuedListener queuedListener){
+        Context context = requireContext();
+        if(PhoneNumberUtils.isGlobalPhoneNumber(destination) && PhoneNumberUtils.isWellFormedSmsAddress(destination)){
+            int port = dataSms && SmsPayloadCodec.encodeBinary(payload).length <= SmsPayloadCodec.MAX_DATA_BYTES
+                    ? BuildConfig.SMS_DATA_PORT : 0;
+            return SmsSendQueue.getInstance(context).enqueue(destination, SmsPayloadCodec.encodeText(payload), port, queuedListener);
+        }
+        return null;
+    }
+
+    /**
+     * Method that queues the same text message for several recipients. Addresses are normalized and
+     * deduplicated, and the message is built once for all of them and queued in a single transaction.
+     * Never blocks: messages are sent by SmsSendQueue's thread, paced by its rate limit like any other.
+     * @param destinations the destination addresses, in phone number format. Invalid ones are left out.
+     * @param message the body of the message to be sent
+     * @param listener optional listener notified every time the message to a recipient is completed
+     * @return the broadcast, following the progress of the recipients, null if the message was empty.
+     * @throws IllegalStateException if no Context was given to this instance nor to any other yet.
+     */
+    public SmsBroadcast sendToMany(@NonNull Collection<String> destinations, @NonNull String message,
+                                   SmsBroadcast.OnBroadcastProgressListener listener){
+        Context context = requireContext();
+        if(message.isEmpty()) return null;
+        return broadcast(context, destinations, APP_KEY + message, 0, null, listener);
+    }
+
+    /**
+     * Method that queues the same payload for several recipients, encoded once for all of them,
+     * see {@link #sendToMany(Collection, String, SmsBroadcast.OnBroadcastProgressListener)}.
+     * @param dataSms whether to send the payload as a binary data sms, see {@link #enqueuePayload}.
+     */
+    public SmsBroadcast sendToMany(@NonNull Collection<String> destinations, @NonNull SmsPayload payload, boolean dataSms,
+                                   SmsBroadcast.OnBroadcastProgressListener listener){
+        Context context = requireContext();
+        byte[] data = dataSms ? SmsPayloadCodec.encodeBinary(payload) : null;
+        if(data != null && data.length > SmsPayloadCodec.MAX_DATA_BYTES) data = null;
+        int port = data != null ? BuildConfig.SMS_DATA_PORT : 0;
+        return broadcast(context, destinations, SmsPayloadCodec.encodeText(payload), port, data, listener);
+    }
+
+    /**
+     * @param data the binary form of the payload if sent as a data sms, null for a text message.
+     */
+    private SmsBroadcast broadcast(Context context, Collection<String> destinations, String body, int dataPort,
+                                   byte[] data, SmsBroadcast.OnBroadcastProgressListener listener){
+        List<String> recipients = SmsBroadcast.normalize(destinations);
+        SmsBroadcast broadcast = new SmsBroadcast(recipients, destinations.size() - recipients.size(), listener);
+        if(!recipients.isEmpty()){
+            ArrayList<String> parts = data == null ? SmsBroadcast.divide(body) : null;
+            broadcast.setFutures(SmsSendQueue.getInstance(context).enqueueAll(recipients, body, dataPort, parts, data, broadcast));
+        }
+        return broadcast;
+    }
+
+    /**
+     * Method returning the Context messages are sent through: this instance's own, or else the one
+     * given to the first instance through its constructor or registerReceiver.
+     * @throws IllegalStateException if no instance was given a Context yet.
+     */
+    private Context requireContext(){
+        Context known = context != null ? context : processContext;
+        if(known == null) throw new IllegalStateException("No Context available, register a receiver or use SmsHandler(Context).");
+        return known;
     }
 
     /**
@@ -135,19 +464,19 @@ public class SmsHandler {
          * instance of the class in order to reduce waste of system resources.
          */
         if(!received && !sent && !delivered) throw new IllegalStateException("Shouldn't register a receiver with no action.");
-        IntentFilter filter = new IntentFilter();
-        if(received){
-            filter.addAction(SMS_HANDLER_RECEIVED_BROADCAST);
-            listeningForIncoming = true;
-            if(listener != null) activeIncomingListeners.add(listener);
+        if(this.context == null){
+            this.context = context.getApplicationContext();
+            inbound.setContext(this.context);
         }
+        if(processContext == null) processContext = this.context;
+        IntentFilter filter = new IntentFilter();
+        //incoming messages are handed off by SmsReceiver to the handlers listening for them
+        if(received) setListeningForIncoming(true);
         if(sent){
             filter.addAction(SMS_HANDLER_SENT_BROADCAST);
-            sentIntent = PendingIntent.getBroadcast(context,0,new Intent(SMS_HANDLER_SENT_BROADCAST),0);
         }
         if(delivered){
             filter.addAction(SMS_HANDLER_DELIVERED_BROADCAST);
-            deliveryIntent = PendingIntent.getBroadcast(context,0,new Intent(SMS_HANDLER_DELIVERED_BROADCAST),0);
         }
         context.registerReceiver(smsEventReceiver,filter);
     }
@@ -158,10 +487,16 @@ public class SmsHandler {
      */
     public void unregisterReceiver(Context context){
         context.unregisterReceiver(smsEventReceiver);
-        listeningForIncoming = false;
-        if(listener != null) activeIncomingListeners.remove(listener);
-        sentIntent = null;
-        deliveryIntent = null;
+        setListeningForIncoming(false);
+    }
+
+    /**
+     * Method marking this instance as listening, or not, for incoming sms.
+     * @param listening whether the receiver of this instance listens for incoming sms.
+     */
+    void setListeningForIncoming(boolean listening){
+        if(listening) incomingHandlers.add(this);
+        else incomingHandlers.remove(this);
     }
 
     /**
@@ -170,46 +505,155 @@ public class SmsHandler {
      * @throws IllegalStateException if a listener is already attached to this instance of SmsHandler.
      */
     public void setListener(@NonNull OnSmsEventListener listener) throws IllegalStateException{
-        if(this.listener != null) throw new IllegalStateException("A listener is already attached to this instance.");
-        this.listener = listener;
-        if(listeningForIncoming) activeIncomingListeners.add(listener);
+        synchronized (listeners){
+            if(!listeners.isEmpty()) throw new IllegalStateException("A listener is already attached to this instance.");
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Method to attach a listener to this instance, alongside the ones already attached. Events are
+     * forwarded to listeners in the order they were added.
+     * @param listener non-null listener to be added.
+     * @return true if the listener was added, false if it was already attached.
+     */
+    public boolean addListener(@NonNull OnSmsEventListener listener){
+        return listeners.addIfAbsent(listener);
     }
 
     /**
-     * Method to clear this instance's attached listener. Albeit not necessary, a listener should
+     * Method to detach a listener from this instance.
+     * @param listener the listener to be removed.
+     * @return true if the listener was attached, false otherwise.
+     */
+    public boolean removeListener(OnSmsEventListener listener){
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Method to clear this instance's attached listeners. Albeit not necessary, a listener should
      * only try to unregister itself.
      */
     public void clearListener(){
-        if(listener == null) return;
-        activeIncomingListeners.remove(listener);
-        listener = null;
+        listeners.clear();
     }
 
     /**
      * Method to communicate whether at least one listener is attached to an instance of this class
      * whose BroadcastReceiver is listening for incoming Sms, and is thus requiring to be notified.
-     * @return true if the activeIncomingListeners list is not empty.
+     * Doesn't lock, the answer reflects the state of the handlers at the time of the call.
+     * @return true if at least one handler listening for incoming sms has a listener.
      */
-    public static boolean shouldHandleIncomingSms(){ return !activeIncomingListeners.isEmpty();}
+    public static boolean shouldHandleIncomingSms(){
+        for(SmsHandler handler : incomingHandlers){
+            if(!handler.listeners.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method handing an incoming message to every handler listening for incoming sms and having
+     * a listener, in this process. The message is released by the handoff once all of them hold it.
+     * @param delivery the message, not yet held by any handler.
+     * @return the number of handlers the message was handed to.
+     */
+    static int handOff(InboundDelivery delivery){
+        int handed = 0;
+        try{
+            for(SmsHandler handler : incomingHandlers){
+                if(handler.listeners.isEmpty()) continue;
+                delivery.hold();
+                handler.dispatchReceived(delivery);
+                handed++;
+            }
+        }
+        finally{
+            delivery.release(false);
+        }
+        return handed;
+    }
+
+    /**
+     * Method checking whether a message was sent as urgent.
+     * @param body the body of the message, may be null.
+     * @return true if body starts with APP_KEY followed by URGENT_MARKER.
+     */
+    public static boolean isUrgent(CharSequence body){
+        return SmsUtils.hasAppKey(body) && body.length() > APP_KEY.length()
+                && body.charAt(APP_KEY.length()) == URGENT_MARKER;
+    }
 
     /**
      * Method to clear and forward the unread messages from the database to the listener. Due to database access restrictions
      * this method cannot be thrown from the main thread. If no listener is present, this method simply clears
      * the database returning the cleared values.
-     * @param context the calling context, used to instantiate the database.
+     * @param context the calling context, used to access the shared database.
      * @return an array containing the SmsEntity object containing the unread sms data.
      * @throws IllegalStateException if it's run from the main Thread.
+     * @deprecated every unread message is held in memory until the method returns, use
+     * {@link #drainUnreadMessages(Context, int)} instead.
      */
+    @Deprecated
     public SmsEntity[] fetchUnreadMessages(Context context){
-        SmsDatabase db = Room.databaseBuilder(context, SmsDatabase.class, SMS_HANDLER_LOCAL_DATABASE)
-                .enableMultiInstanceInvalidation()
-                .build();
-        SmsEntity[] messages = db.access().loadAllSms();
-        for(SmsEntity sms : messages){
-            db.access().deleteSms(sms);
-            if(listener != null) listener.onReceive(sms.address, sms.body);
-            Log.e("Unread Message", sms.address+" "+sms.body);
-        }
-        return messages;
+        List<SmsEntity> messages = new ArrayList<>();
+        drain(context, DEFAULT_DRAIN_PAGE_SIZE, messages);
+        return messages.toArray(new SmsEntity[0]);
+    }
+
+    /**
+     * Method to clear and forward the unread messages from the database to the listener, using
+     * the default page size.
+     * @see #drainUnreadMessages(Context, int)
+     */
+    public int drainUnreadMessages(Context context){
+        return drainUnreadMessages(context, DEFAULT_DRAIN_PAGE_SIZE);
+    }
+
+    /**
+     * Method to clear and forward the unread messages from the database to the listener. Due to database access restrictions
+     * this method cannot be thrown from the main thread. If no listener is present, this method simply clears
+     * the database. Messages are read and deleted in pages of fixed size, each in its own transaction,
+     * so that memory usage does not depend on how many messages are waiting. Listeners are called
+     * on the calling thread rather than through the dispatch executor, so that a page is consumed
+     * before the next one is read.
+     * @param context the calling context, used to access the shared database.
+     * @param pageSize the maximum number of messages to be held in memory at once.
+     * @return the number of messages cleared from the database.
+     * @throws IllegalStateException if it's run from the main Thread.
+     * @throws IllegalArgumentException if pageSize is not positive.
+     */
+    public int drainUnreadMessages(Context context, int pageSize){
+        if(pageSize < 1) throw new IllegalArgumentException("Page size must be positive.");
+        return drain(context, pageSize, null);
+    }
+
+    /**
+     * Method draining the unread messages page by page, see {@link #drainUnreadMessages(Context, int)}.
+     * @param drained the list the drained messages are added to, null if they are not needed.
+     * @return the number of messages forwarded to the listeners.
+     */
+    private int drain(Context context, int pageSize, List<SmsEntity> drained){
+        SmsDatabase db = SmsDatabase.getInstance(context);
+        int total = 0;
+        int taken;
+        List<SmsEntity> page = new ArrayList<>(pageSize);
+        do{
+            page.clear();
+            Trace.beginSection("SmsHandler.drain");
+            long start = SystemClock.elapsedRealtimeNanos();
+            try{
+                //messages which can't be decrypted are taken but left out, the drain goes on past them
+                taken = db.takeSmsPage(pageSize, page);
+            }
+            finally{
+                metrics.recordLatency(SmsMetrics.STAGE_DRAIN, SystemClock.elapsedRealtimeNanos() - start);
+                Trace.endSection();
+            }
+            metrics.count(SmsMetrics.COUNTER_DRAINED, page.size());
+            for(SmsEntity sms : page) notifyReceived(sms.address, sms.body, sms.subscriptionId);
+            if(drained != null) drained.addAll(page);
+            total += page.size();
+        }while(taken == pageSize);
+        return total;
     }
 }
@@ -0,0 +1,59 @@
+package com.dezen.riccardo.smshandler;
+
+/**
+ * Interface meant to be implemented by classes collecting the library's metrics, see
+ * {@link SmsHandler#setMetrics}. Methods are called on the hot paths of every message, from any
+ * thread: implementations must be thread safe, and should neither block nor allocate.
+ * Stages, counters and gauges are identified by the int constants below.
+ */
+public interface SmsMetrics {
+    //Stages whose latency is recorded, in nanoseconds.
+    int STAGE_RECEIVE = 0;      //handling of a SMS_RECEIVED or DATA_SMS_RECEIVED broadcast
+    int STAGE_FILTER = 1;       //reassembly and APP_KEY filtering of a broadcast's messages
+    int STAGE_DB_WRITE = 2;     //write of a batch of incoming messages
+    int STAGE_DRAIN = 3;        //read and delete of a page of unread messages
+    int STAGE_DISPATCH = 4;     //call of the listeners for an incoming message
+    int STAGE_SENT = 5;         //from handing a message to SmsManager to its sent result
+    int STAGE_DELIVERED = 6;    //from handing a message to SmsManager to its delivery report
+    int STAGE_HANDOFF = 7;      //from handing an incoming message to the handlers to its consumption
+    int STAGE_COUNT = 8;
+
+    //Counters, in number of messages.
+    int COUNTER_RECEIVED = 0;       //complete messages received, before filtering
+    int COUNTER_FILTERED_OUT = 1;   //messages without APP_KEY
+    int COUNTER_DUPLICATES = 2;     //messages dropped as duplicates
+    int COUNTER_FORWARDED = 3;      //messages handed off to running handlers
+    int COUNTER_PERSISTED = 4;      //messages written to the database
+    int COUNTER_DRAINED = 5;        //messages read back by drainUnreadMessages
+    int COUNTER_DISPATCHED = 6;     //messages delivered to listeners
+    int COUNTER_SENT = 7;           //successful sent results
+    int COUNTER_SEND_FAILED = 8;    //failed sent results, retried or not
+    int COUNTER_DELIVERED = 9;      //delivery reports
+    int COUNTER_HANDOFF_FALLBACKS = 10; //handed off messages persisted since no listener consumed them
+    int COUNTER_COUNT = 11;
+
+    //Gauges, holding the latest value.
+    int GAUGE_SEND_QUEUE_DEPTH = 0; //messages in the outbox, sending ones included
+    int GAUGE_COUNT = 1;
+
+    /**
+     * Method adding to a counter.
+     * @param counter one of the COUNTER constants.
+     * @param delta the amount to be added.
+     */
+    void count(int counter, long delta);
+
+    /**
+     * Method recording the duration of a stage.
+     * @param stage one of the STAGE constants.
+     * @param nanos the duration, in nanoseconds.
+     */
+    void recordLatency(int stage, long nanos);
+
+    /**
+     * Method setting the current value of a gauge.
+     * @param gauge one of the GAUGE constants.
+     * @param value the new value.
+     */
+    void setGauge(int gauge, long value);
+}
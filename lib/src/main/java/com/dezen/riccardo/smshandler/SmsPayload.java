@@ -0,0 +1,139 @@
+package com.dezen.riccardo.smshandler;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structured content of a message: an ordered set of named fields, each holding a string, a number
+ * or raw bytes. Encoded by {@link SmsPayloadCodec} into as few sms segments as possible.
+ * Field names are made of ASCII letters, digits and underscores, so that they never need escaping.
+ */
+public class SmsPayload {
+    //Longest allowed field name.
+    public static final int MAX_KEY_LENGTH = 255;
+
+    //Field values, either String, Long or byte[], in insertion order.
+    private final Map<String, Object> fields = new LinkedHashMap<>();
+
+    /**
+     * Methods setting a field, replacing any previous value with the same name.
+     * @param key the name of the field.
+     * @param value the value of the field.
+     * @return this payload.
+     * @throws IllegalArgumentException if key is not a valid field name.
+     */
+    public SmsPayload putString(String key, @NonNull String value){
+        fields.put(checkKey(key), value);
+        return this;
+    }
+
+    public SmsPayload putLong(String key, long value){
+        fields.put(checkKey(key), value);
+        return this;
+    }
+
+    public SmsPayload putBytes(String key, @NonNull byte[] value){
+        fields.put(checkKey(key), value.clone());
+        return this;
+    }
+
+    /**
+     * @param key the name of the field.
+     * @return the value of the field, null if absent or not a string.
+     */
+    public String getString(String key){
+        Object value = fields.get(key);
+        return value instanceof String ? (String)value : null;
+    }
+
+    /**
+     * @param key the name of the field.
+     * @param defaultValue the value returned if the field is absent or not a number.
+     * @return the value of the field.
+     */
+    public long getLong(String key, long defaultValue){
+        Object value = fields.get(key);
+        return value instanceof Long ? (Long)value : defaultValue;
+    }
+
+    /**
+     * @param key the name of the field.
+     * @return a copy of the value of the field, null if absent or not raw bytes.
+     */
+    public byte[] getBytes(String key){
+        Object value = fields.get(key);
+        return value instanceof byte[] ? ((byte[])value).clone() : null;
+    }
+
+    /**
+     * @return the names of the fields, in insertion order.
+     */
+    public Set<String> keySet(){
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * @return the value of the field as stored, without copying. Used by the codec.
+     */
+    Object get(String key){
+        return fields.get(key);
+    }
+
+    /**
+     * @return the number of fields.
+     */
+    public int size(){
+        return fields.size();
+    }
+
+    /**
+     * Method checking whether a name can be used for a field.
+     * @param key the name of the field.
+     * @return key itself.
+     * @throws IllegalArgumentException if key is null, empty, too long or contains other characters
+     * than ASCII letters, digits and underscores.
+     */
+    static String checkKey(String key){
+        if(key == null || key.isEmpty() || key.length() > MAX_KEY_LENGTH)
+            throw new IllegalArgumentException("Invalid field name: " + key);
+        for(int i = 0; i < key.length(); i++){
+            char c = key.charAt(i);
+            if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'))
+                throw new IllegalArgumentException("Invalid field name: " + key);
+        }
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof SmsPayload)) return false;
+        SmsPayload other = (SmsPayload)o;
+        if(!fields.keySet().equals(other.fields.keySet())) return false;
+        for(Map.Entry<String, Object> field : fields.entrySet()){
+            Object value = field.getValue();
+            Object otherValue = other.fields.get(field.getKey());
+            if(value instanceof byte[]){
+                if(!(otherValue instanceof byte[]) || !Arrays.equals((byte[])value, (byte[])otherValue)) return false;
+            }
+            else if(!value.equals(otherValue)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for(Map.Entry<String, Object> field : fields.entrySet()){
+            Object value = field.getValue();
+            hash += field.getKey().hashCode()
+                    ^ (value instanceof byte[] ? Arrays.hashCode((byte[])value) : value.hashCode());
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,375 @@
+package com.dezen.riccardo.smshandler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes SmsPayloads either as text or as the user data of a data sms.
+ *
+ * Text form: APP_KEY, PAYLOAD_MARKER, then the fields separated by '&'. Each field is its name,
+ * a type character and its value: '=' for strings, ':' for numbers and '*' for raw bytes. Numbers
+ * and bytes are written in base 64, using an alphabet within the GSM 7-bit default alphabet. A single
+ * character outside of the GSM alphabet switches the whole message to UCS-2, cutting a segment from
+ * 160 to 70 characters: such characters are escaped as '%' followed by four hex digits, unless the
+ * message is shorter in UCS-2 anyway. '%' and '&' are always escaped.
+ *
+ * Binary form: FORMAT_VERSION, then for each field the length and ASCII bytes of its name, a type
+ * byte and its value. Numbers are zigzag varints, strings and bytes are prefixed by their varint length.
+ */
+public class SmsPayloadCodec {
+    //Character following APP_KEY in the text form of a payload.
+    public static final char PAYLOAD_MARKER = '$';
+    //User data available to a data sms once the port addressing header is added.
+    public static final int MAX_DATA_BYTES = 133;
+    //Segment capacity of single and concatenated messages, in septets for GSM and chars for UCS-2.
+    static final int GSM_SINGLE = 160;
+    static final int GSM_MULTI = 153;
+    static final int UCS2_SINGLE = 70;
+    static final int UCS2_MULTI = 67;
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_BYTES = 2;
+    private static final char FIELD_SEPARATOR = '&';
+    private static final char ESCAPE = '%';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String GSM_BASIC = "@£$¥èéùìòÇ\nØø\rÅå"
+            + "Δ_ΦΓΛΩΠΨΣΘΞÆæßÉ"
+            + " !\"#¤%&'()*+,-./0123456789:;<=>?"
+            + "¡ABCDEFGHIJKLMNOPQRSTUVWXYZÄÖÑÜ§"
+            + "¿abcdefghijklmnopqrstuvwxyzäöñüà";
+    //Characters sent as an escape septet followed by another one.
+    private static final String GSM_EXTENSION = "\f^{}\\[~]|€";
+    private static final String DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final String HEX = "0123456789ABCDEF";
+    //Septets taken by each ASCII character, 0 if it's not in the GSM alphabet.
+    private static final byte[] ASCII_SEPTETS = new byte[128];
+    //Value of each ASCII base 64 digit, -1 if it's not a digit.
+    private static final byte[] DIGIT_VALUES = new byte[128];
+
+    static{
+        for(int i = 0; i < GSM_BASIC.length(); i++){
+            char c = GSM_BASIC.charAt(i);
+            if(c < 128) ASCII_SEPTETS[c] = 1;
+        }
+        for(int i = 0; i < GSM_EXTENSION.length(); i++){
+            char c = GSM_EXTENSION.charAt(i);
+            if(c < 128) ASCII_SEPTETS[c] = 2;
+        }
+        for(int i = 0; i < 128; i++) DIGIT_VALUES[i] = -1;
+        for(int i = 0; i < DIGITS.length(); i++) DIGIT_VALUES[DIGITS.charAt(i)] = (byte)i;
+    }
+
+    private SmsPayloadCodec(){ }
+
+    /**
+     * Method checking whether a message body is the text form of a payload.
+     * @param body the body of the message, may be null.
+     * @return true if body starts with APP_KEY followed by PAYLOAD_MARKER, optionally preceded by
+     * SmsHandler.URGENT_MARKER.
+     */
+    public static boolean isPayload(CharSequence body){
+        if(!SmsUtils.hasAppKey(body)) return false;
+        int marker = headerLength(body);
+        return body.length() > marker && body.charAt(marker) == PAYLOAD_MARKER;
+    }
+
+    /**
+     * @return the length of APP_KEY and of the urgent marker, if present.
+     */
+    private static int headerLength(CharSequence body){
+        return SmsHandler.isUrgent(body) ? SmsHandler.APP_KEY.length() + 1 : SmsHandler.APP_KEY.length();
+    }
+
+    /**
+     * Method encoding a payload as the body of a text message, choosing whichever of the GSM and
+     * UCS-2 friendly forms takes fewer segments.
+     * @param payload the payload to be encoded.
+     * @return the full body of the message, APP_KEY included.
+     */
+    public static String encodeText(SmsPayload payload){
+        String gsm = buildText(payload, true);
+        String ucs2 = buildText(payload, false);
+        //the two only differ if some characters outside of the GSM alphabet were escaped
+        if(gsm.length() != ucs2.length() && segments(ucs2) < segments(gsm)) return ucs2;
+        return gsm;
+    }
+
+    private static String buildText(SmsPayload payload, boolean gsmOnly){
+        StringBuilder sb = new StringBuilder(SmsHandler.APP_KEY).append(PAYLOAD_MARKER);
+        boolean first = true;
+        for(String key : payload.keySet()){
+            if(!first) sb.append(FIELD_SEPARATOR);
+            first = false;
+            sb.append(key);
+            Object value = payload.get(key);
+            if(value instanceof String){
+                sb.append('=');
+                appendEscaped(sb, (String)value, gsmOnly);
+            }
+            else if(value instanceof Long){
+                sb.append(':');
+                appendNumber(sb, (Long)value);
+            }
+            else{
+                sb.append('*');
+                appendBytes(sb, (byte[])value);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value, boolean gsmOnly){
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == ESCAPE || c == FIELD_SEPARATOR || (gsmOnly && septets(c) == 0)){
+                sb.append(ESCAPE);
+                for(int shift = 12; shift >= 0; shift -= 4) sb.append(HEX.charAt((c >> shift) & 0xF));
+            }
+            else sb.append(c);
+        }
+    }
+
+    private static void appendNumber(StringBuilder sb, long value){
+        if(value < 0){
+            sb.append('-');
+            //Long.MIN_VALUE stays negative, its digits are then read as unsigned
+            value = -value;
+        }
+        char[] digits = new char[11];
+        int start = digits.length;
+        do{
+            digits[--start] = DIGITS.charAt((int)(value & 63));
+            value >>>= 6;
+        }while(value != 0);
+        sb.append(digits, start, digits.length - start);
+    }
+
+    private static void appendBytes(StringBuilder sb, byte[] value){
+        int i = 0;
+        for(; i + 2 < value.length; i += 3){
+            int bits = (value[i] & 0xFF) << 16 | (value[i + 1] & 0xFF) << 8 | (value[i + 2] & 0xFF);
+            for(int shift = 18; shift >= 0; shift -= 6) sb.append(DIGITS.charAt((bits >> shift) & 63));
+        }
+        //no padding, the length of the value tells how many bytes the last group holds
+        int left = value.length - i;
+        if(left == 1){
+            int bits = (value[i] & 0xFF) << 4;
+            sb.append(DIGITS.charAt(bits >> 6)).append(DIGITS.charAt(bits & 63));
+        }
+        else if(left == 2){
+            int bits = ((value[i] & 0xFF) << 8 | (value[i + 1] & 0xFF)) << 2;
+            sb.append(DIGITS.charAt(bits >> 12)).append(DIGITS.charAt((bits >> 6) & 63)).append(DIGITS.charAt(bits & 63));
+        }
+    }
+
+    /**
+     * Method decoding the text form of a payload.
+     * @param body the full body of the message, APP_KEY included.
+     * @return the decoded payload.
+     * @throws IllegalArgumentException if body is not a well formed payload.
+     */
+    public static SmsPayload decodeText(CharSequence body){
+        if(!isPayload(body)) throw new IllegalArgumentException("Not a payload");
+        SmsPayload payload = new SmsPayload();
+        int pos = headerLength(body) + 1;
+        int length = body.length();
+        while(pos < length){
+            int end = pos;
+            while(end < length && body.charAt(end) != FIELD_SEPARATOR) end++;
+            int type = pos;
+            while(type < end && body.charAt(type) != '=' && body.charAt(type) != ':' && body.charAt(type) != '*') type++;
+            if(type == end) throw new IllegalArgumentException("Field without type at " + pos);
+            String key = body.subSequence(pos, type).toString();
+            switch(body.charAt(type)){
+                case '=':
+                    payload.putString(key, unescape(body, type + 1, end));
+                    break;
+                case ':':
+                    payload.putLong(key, parseNumber(body, type + 1, end));
+                    break;
+                default:
+                    payload.putBytes(key, parseBytes(body, type + 1, end));
+            }
+            pos = end + 1;
+        }
+        return payload;
+    }
+
+    private static String unescape(CharSequence text, int start, int end){
+        StringBuilder sb = new StringBuilder(end - start);
+        int i = start;
+        while(i < end){
+            char c = text.charAt(i);
+            if(c != ESCAPE){
+                sb.append(c);
+                i++;
+                continue;
+            }
+            if(i + 4 >= end) throw new IllegalArgumentException("Truncated escape at " + i);
+            int value = 0;
+            for(int j = i + 1; j <= i + 4; j++){
+                int digit = HEX.indexOf(text.charAt(j));
+                if(digit < 0) throw new IllegalArgumentException("Invalid escape at " + i);
+                value = value << 4 | digit;
+            }
+            sb.append((char)value);
+            i += 5;
+        }
+        return sb.toString();
+    }
+
+    private static long parseNumber(CharSequence text, int start, int end){
+        boolean negative = start < end && text.charAt(start) == '-';
+        if(negative) start++;
+        if(start == end || end - start > 11) throw new IllegalArgumentException("Invalid number at " + start);
+        long value = 0;
+        for(int i = start; i < end; i++) value = value << 6 | digit(text.charAt(i));
+        return negative ? -value : value;
+    }
+
+    private static byte[] parseBytes(CharSequence text, int start, int end){
+        int chars = end - start;
+        if(chars % 4 == 1) throw new IllegalArgumentException("Invalid bytes at " + start);
+        byte[] bytes = new byte[chars * 3 / 4];
+        int out = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for(int i = start; i < end; i++){
+            bits = bits << 6 | digit(text.charAt(i));
+            bitCount += 6;
+            if(bitCount >= 8){
+                bitCount -= 8;
+                bytes[out++] = (byte)(bits >> bitCount);
+            }
+        }
+        return bytes;
+    }
+
+    private static int digit(char c){
+        int value = c < 128 ? DIGIT_VALUES[c] : -1;
+        if(value < 0) throw new IllegalArgumentException("Invalid digit " + c);
+        return value;
+    }
+
+    /**
+     * Method encoding a payload as the user data of a data sms.
+     * @param payload the payload to be encoded.
+     * @return the encoded payload, which fits a single data sms if no longer than MAX_DATA_BYTES.
+     */
+    public static byte[] encodeBinary(SmsPayload payload){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(FORMAT_VERSION);
+        for(String key : payload.keySet()){
+            //names are ASCII and at most 255 characters long
+            out.write(key.length());
+            for(int i = 0; i < key.length(); i++) out.write(key.charAt(i));
+            Object value = payload.get(key);
+            if(value instanceof String){
+                out.write(TYPE_STRING);
+                writeBlock(out, ((String)value).getBytes(UTF_8));
+            }
+            else if(value instanceof Long){
+                out.write(TYPE_LONG);
+                long v = (Long)value;
+                writeVarint(out, (v << 1) ^ (v >> 63));
+            }
+            else{
+                out.write(TYPE_BYTES);
+                writeBlock(out, (byte[])value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeBlock(ByteArrayOutputStream out, byte[] block){
+        writeVarint(out, block.length);
+        out.write(block, 0, block.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value){
+        while((value & ~0x7FL) != 0){
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    /**
+     * Method decoding the user data of a data sms.
+     * @param data the user data.
+     * @return the decoded payload.
+     * @throws IllegalArgumentException if data is not a well formed payload.
+     */
+    public static SmsPayload decodeBinary(byte[] data){
+        if(data == null || data.length == 0 || data[0] != FORMAT_VERSION)
+            throw new IllegalArgumentException("Unknown payload format");
+        SmsPayload payload = new SmsPayload();
+        int[] pos = {1};
+        while(pos[0] < data.length){
+            int keyLength = data[pos[0]++] & 0xFF;
+            if(pos[0] + keyLength + 1 > data.length) throw new IllegalArgumentException("Truncated payload");
+            String key = new String(data, pos[0], keyLength, UTF_8);
+            pos[0] += keyLength;
+            byte type = data[pos[0]++];
+            if(type == TYPE_LONG){
+                long v = readVarint(data, pos);
+                payload.putLong(key, (v >>> 1) ^ -(v & 1));
+                continue;
+            }
+            long length = readVarint(data, pos);
+            if(length < 0 || length > data.length - pos[0]) throw new IllegalArgumentException("Truncated payload");
+            if(type == TYPE_STRING) payload.putString(key, new String(data, pos[0], (int)length, UTF_8));
+            else if(type == TYPE_BYTES){
+                byte[] value = new byte[(int)length];
+                System.arraycopy(data, pos[0], value, 0, value.length);
+                payload.putBytes(key, value);
+            }
+            else throw new IllegalArgumentException("Unknown field type " + type);
+            pos[0] += (int)length;
+        }
+        return payload;
+    }
+
+    private static long readVarint(byte[] data, int[] pos){
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            if(pos[0] >= data.length) throw new IllegalArgumentException("Truncated payload");
+            byte b = data[pos[0]++];
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Method computing how many segments a text message takes, assuming the default GSM alphabet
+     * without national language tables.
+     * @param text the full body of the message.
+     * @return the number of segments, at least 1.
+     */
+    public static int segments(CharSequence text){
+        int septets = 0;
+        for(int i = 0; i < text.length(); i++){
+            int s = septets(text.charAt(i));
+            if(s == 0){
+                //UCS-2 counts UTF-16 units, surrogate pairs included
+                int units = text.length();
+                return units <= UCS2_SINGLE ? 1 : (units + UCS2_MULTI - 1) / UCS2_MULTI;
+            }
+            septets += s;
+        }
+        return septets <= GSM_SINGLE ? 1 : (septets + GSM_MULTI - 1) / GSM_MULTI;
+    }
+
+    /**
+     * @return the number of septets taken by c in the GSM alphabet, 0 if it's not part of it.
+     */
+    static int septets(char c){
+        if(c < 128) return ASCII_SEPTETS[c];
+        if(GSM_BASIC.indexOf(c) >= 0) return 1;
+        return GSM_EXTENSION.indexOf(c) >= 0 ? 2 : 0;
+    }
+}
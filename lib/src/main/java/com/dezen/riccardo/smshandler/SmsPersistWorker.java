@@ -0,0 +1,196 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.dezen.riccardo.smshandler.database.SmsCipher;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Durable fallback for incoming messages which couldn't be written to the database within the
+ * broadcast's time window, either because the persistence executor's backlog was full or because
+ * the write failed. WorkManager keeps the messages until they are written, across process deaths.
+ * Bodies are sealed by SmsCipher before being handed to WorkManager, which stores them in its own
+ * database, and opened again just before being written.
+ */
+public class SmsPersistWorker extends Worker {
+    private static final String KEY_ADDRESSES = "addresses";
+    private static final String KEY_BODIES = "bodies";
+    private static final String KEY_TIMESTAMPS = "timestamps";
+    private static final String KEY_SUBSCRIPTIONS = "subscriptions";
+    private static final String KEY_CHECKED = "checked";
+    //Data is serialized with an ObjectOutputStream, strings as modified UTF-8: up to 3 bytes per char.
+    //The margin covers the keys, the arrays' headers and the per-string markers.
+    static final int MAX_BYTES_PER_REQUEST = Data.MAX_DATA_BYTES - 1024;
+    //Serialized size of each message besides its strings: timestamp, subscription, two string headers.
+    private static final int BYTES_PER_MESSAGE = 8 + 4 + 2 * 3;
+
+    public SmsPersistWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Method handing messages to WorkManager, split in as many requests as needed to fit its input limits.
+     * @param context any Context.
+     * @param messages the messages to be written to the database.
+     * @param checked whether the messages were already checked for duplicates and logged, in which
+     *                case they are written as they are, see SmsReceiver. Otherwise those whose
+     *                fingerprint was already persisted are dropped when the work runs.
+     */
+    static void enqueue(Context context, List<SmsEntity> messages, boolean checked){
+        List<SmsEntity> sealed = new ArrayList<>(messages.size());
+        for(SmsEntity original : messages){
+            //a copy, the caller's message is left as it is
+            SmsEntity sms = new SmsEntity(original.address,
+                    SmsCipher.sealBody(context, original.address, original.body), original.timestamp);
+            sms.subscriptionId = original.subscriptionId;
+            sealed.add(sms);
+        }
+        for(List<SmsEntity> chunk : split(sealed)){
+            Data input;
+            try{
+                input = toInputData(chunk, checked);
+            }
+            catch(IllegalStateException e){
+                //a single message longer than the limit, which no sms gets close to
+                Log.e("SmsPersistWorker", "Dropping a message too large for WorkManager", e);
+                continue;
+            }
+            WorkManager.getInstance(context).enqueue(new OneTimeWorkRequest.Builder(SmsPersistWorker.class)
+                    .setInputData(input)
+                    .build());
+        }
+    }
+
+    /**
+     * Method splitting messages in chunks whose input data fits WorkManager's limit, keeping their order.
+     * @param messages the messages, bodies already sealed.
+     * @return the chunks, each holding at least one message.
+     */
+    static List<List<SmsEntity>> split(List<SmsEntity> messages){
+        List<List<SmsEntity>> chunks = new ArrayList<>();
+        List<SmsEntity> chunk = new ArrayList<>();
+        int bytes = 0;
+        for(SmsEntity sms : messages){
+            int size = encodedLength(sms.address) + encodedLength(sms.body) + BYTES_PER_MESSAGE;
+            if(!chunk.isEmpty() && bytes + size > MAX_BYTES_PER_REQUEST){
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+            chunk.add(sms);
+            bytes += size;
+        }
+        if(!chunk.isEmpty()) chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * @throws IllegalStateException if the chunk doesn't fit WorkManager's limit.
+     */
+    static Data toInputData(List<SmsEntity> chunk, boolean checked){
+        String[] addresses = new String[chunk.size()];
+        String[] bodies = new String[chunk.size()];
+        long[] timestamps = new long[chunk.size()];
+        int[] subscriptions = new int[chunk.size()];
+        for(int i = 0; i < chunk.size(); i++){
+            addresses[i] = chunk.get(i).address;
+            bodies[i] = chunk.get(i).body;
+            timestamps[i] = chunk.get(i).timestamp;
+            subscriptions[i] = chunk.get(i).subscriptionId;
+        }
+        return new Data.Builder()
+                .putStringArray(KEY_ADDRESSES, addresses)
+                .putStringArray(KEY_BODIES, bodies)
+                .putLongArray(KEY_TIMESTAMPS, timestamps)
+                .putIntArray(KEY_SUBSCRIPTIONS, subscriptions)
+                .putBoolean(KEY_CHECKED, checked)
+                .build();
+    }
+
+    /**
+     * @return the length of s in modified UTF-8, as written by ObjectOutputStream.
+     */
+    private static int encodedLength(String s){
+        if(s == null) return 0;
+        int bytes = 0;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F) bytes++;
+            else if(c <= 0x07FF) bytes += 2;
+            else bytes += 3;
+        }
+        return bytes;
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String[] addresses = getInputData().getStringArray(KEY_ADDRESSES);
+        String[] bodies = getInputData().getStringArray(KEY_BODIES);
+        long[] timestamps = getInputData().getLongArray(KEY_TIMESTAMPS);
+        //missing from requests queued by older versions
+        int[] subscriptions = getInputData().getIntArray(KEY_SUBSCRIPTIONS);
+        final boolean checked = getInputData().getBoolean(KEY_CHECKED, false);
+        if(addresses == null || bodies == null || timestamps == null) return Result.failure();
+        final List<SmsEntity> messages = new ArrayList<>(addresses.length);
+        try{
+            final SmsDatabase db = SmsDatabase.getInstance(getApplicationContext());
+            for(int i = 0; i < addresses.length; i++){
+                String body;
+                try{
+                    body = SmsCipher.openBody(getApplicationContext(), addresses[i], bodies[i]);
+                }
+                catch(AEADBadTagException e){
+                    //sealed with a key which is gone, the body is never logged
+                    Log.e("SmsPersistWorker", "Dropping a message, it can't be decrypted", e);
+                    continue;
+                }
+                catch(GeneralSecurityException e){
+                    Log.e("SmsPersistWorker", "Decryption failed, retrying later", e);
+                    return Result.retry();
+                }
+                catch(IllegalArgumentException e){
+                    Log.e("SmsPersistWorker", "Dropping a malformed message", e);
+                    continue;
+                }
+                SmsEntity sms = new SmsEntity(addresses[i], body, timestamps[i]);
+                if(subscriptions != null) sms.subscriptionId = subscriptions[i];
+                messages.add(sms);
+            }
+            db.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    if(checked){
+                        //already checked and logged by the receiver before the handoff
+                        db.insertSms(messages);
+                        return;
+                    }
+                    //only checked against the recent ones in memory, a retransmit may outlive the process
+                    List<SmsEntity> fresh = MessageDeduplicator.filterPersisted(db, messages);
+                    if(!fresh.isEmpty()) db.insertSms(fresh);
+                    MessageLog.append(db, fresh);
+                }
+            });
+            return Result.success();
+        }
+        catch(RuntimeException e){
+            Log.e("SmsPersistWorker", "Write failed, retrying later", e);
+            return Result.retry();
+        }
+    }
+}
@@ -3,78 +3,493 @@ package com.dezen.riccardo.smshandler;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.provider.Telephony;
 import android.telephony.SmsMessage;
 import android.util.Log;
 
-import androidx.room.Room;
-
 import com.dezen.riccardo.smshandler.database.SmsDatabase;
 import com.dezen.riccardo.smshandler.database.SmsEntity;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SmsReceiver extends BroadcastReceiver {
+    //Maximum number of messages waiting to be written to the database.
+    static final int MAX_PENDING_WRITES = 512;
+    //Maximum number of write tasks waiting for the persistence executor.
+    static final int MAX_PENDING_TASKS = 64;
+    //Time a handed off message may wait for a listener before being written, well within the broadcast's limit.
+    static final long HANDOFF_TIMEOUT_MILLIS = 5000;
+    /**
+     * Messages waiting to be written to the database. Shared by all the write tasks so that
+     * messages coming from back-to-back broadcasts are committed together by the first task to run.
+     */
+    private static final BlockingQueue<SmsEntity> pendingWrites = new ArrayBlockingQueue<>(MAX_PENDING_WRITES);
+    /**
+     * Executor dedicated to writing incoming messages, so that persistence doesn't compete with
+     * other background work. A single thread, so that write tasks run in order, with a bounded backlog:
+     * whatever doesn't fit is handed to SmsPersistWorker.
+     */
+    private static final ThreadPoolExecutor persistExecutor = new ThreadPoolExecutor(1, 1,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_TASKS));
+    //Handler timing out handoffs, lazily started.
+    private static Handler timeoutHandler;
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        if(intent.getAction() != null && intent.getAction().equals(Telephony.Sms.Intents.SMS_RECEIVED_ACTION)){
-            List<SmsMessage> messages = filter(Telephony.Sms.Intents.getMessagesFromIntent(intent));
-            if(messages.size() > 0){
-                if(SmsHandler.shouldHandleIncomingSms()){
-                    //broadcast local intent to wake the local receiver if the app is running
-                    Log.d("SmsReceiver", "Forwarding intent...");
-                    Intent local_intent = new Intent();
-                    local_intent.replaceExtras(intent);
-                    local_intent.setAction(SmsHandler.SMS_HANDLER_RECEIVED_BROADCAST);
-                    local_intent.setPackage(context.getApplicationContext().getPackageName());
-                    context.sendBroadcast(local_intent);
+        SmsMetrics metrics = SmsHandler.getMetrics();
+        Trace.beginSection("SmsReceiver.onReceive");
+        long start = SystemClock.elapsedRealtimeNanos();
+        try{
+            List<SmsEntity> messages;
+            int subscription = intent.getIntExtra(SubscriptionRouter.EXTRA_SUBSCRIPTION, SubscriptionRouter.NO_SUBSCRIPTION);
+            if(intent.getAction() != null && intent.getAction().equals(Telephony.Sms.Intents.SMS_RECEIVED_ACTION)){
+                List<SmsEntity> received = reassemble(Telephony.Sms.Intents.getMessagesFromIntent(intent), System.currentTimeMillis());
+                messages = filter(received);
+                metrics.count(SmsMetrics.COUNTER_RECEIVED, received.size());
+                metrics.count(SmsMetrics.COUNTER_FILTERED_OUT, received.size() - messages.size());
+            }
+            else if(Telephony.Sms.Intents.DATA_SMS_RECEIVED_ACTION.equals(intent.getAction())){
+                //only data sms sent to the port declared in the manifest are delivered here
+                messages = decodePayloads(Telephony.Sms.Intents.getMessagesFromIntent(intent), System.currentTimeMillis());
+                metrics.count(SmsMetrics.COUNTER_RECEIVED, messages.size());
+            }
+            else return;
+            for(SmsEntity sms : messages) sms.subscriptionId = subscription;
+            metrics.recordLatency(SmsMetrics.STAGE_FILTER, SystemClock.elapsedRealtimeNanos() - start);
+            if(messages.size() > 0) ingest(context, messages, this);
+        }
+        finally{
+            metrics.recordLatency(SmsMetrics.STAGE_RECEIVE, SystemClock.elapsedRealtimeNanos() - start);
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Method handing complete, filtered messages to the app: handed directly to the running handlers
+     * if any is listening, written to the database otherwise or if no listener consumes them.
+     * Duplicates, whether delivered through another path or retransmitted, are dropped by
+     * MessageDeduplicator: first against the recent messages in memory, then against the database
+     * on the persistence executor.
+     * @param context any Context.
+     * @param messages the messages to be ingested.
+     * @param receiver the receiver whose broadcast is being handled, kept alive until the messages
+     *                 are consumed or written. Null if not called from a receiver.
+     */
+    static void ingest(Context context, List<SmsEntity> messages, BroadcastReceiver receiver){
+        messages = MessageDeduplicator.filterRecent(messages);
+        if(messages.isEmpty()) return;
+        Context appContext = context.getApplicationContext();
+        PendingResult result = receiver != null ? receiver.goAsync() : null;
+        if(SmsHandler.shouldHandleIncomingSms()){
+            HandoffTask task = new HandoffTask(appContext, messages, result);
+            try{
+                persistExecutor.execute(task);
+            }
+            catch(RejectedExecutionException e){
+                //recent duplicates were dropped already, better a rare duplicate than a delay
+                Log.w("SmsReceiver", "Persistence backlog full, handing off unchecked");
+                task.handOff(messages);
+            }
+        }
+        else{
+            //write new sms to local database asynchronously, keeping the broadcast alive until done
+            Log.d("SmsReceiver", "Writing to database...");
+            List<SmsEntity> overflow = new ArrayList<>();
+            for(SmsEntity entity : messages){
+                if(!enqueueWrite(entity)) overflow.add(entity);
+            }
+            try{
+                persistExecutor.execute(new WriteTask(appContext, overflow, result));
+            }
+            catch(RejectedExecutionException e){
+                //queued messages will be written by the tasks already waiting
+                Log.w("SmsReceiver", "Persistence backlog full, deferring to WorkManager");
+                if(!overflow.isEmpty()) SmsPersistWorker.enqueue(context, overflow, false);
+                if(result != null) result.finish();
+            }
+        }
+    }
+
+    /**
+     * Method ingesting messages like {@link #ingest}, but checking and writing them on the calling
+     * thread. Returns once every message was consumed by a listener, written to the database or
+     * handed to SmsPersistWorker, so that the caller can then record them as ingested.
+     * @param context any Context.
+     * @param messages the messages to be ingested.
+     * @throws InterruptedException if interrupted while the messages are being handed off, in which
+     * case some of them may not be settled yet.
+     */
+    static void ingestAndWait(Context context, List<SmsEntity> messages) throws InterruptedException{
+        messages = MessageDeduplicator.filterRecent(messages);
+        if(messages.isEmpty()) return;
+        Context appContext = context.getApplicationContext();
+        if(SmsHandler.shouldHandleIncomingSms()){
+            HandoffTask task = new HandoffTask(appContext, messages, null);
+            task.run();
+            task.done.await();
+            return;
+        }
+        try{
+            write(SmsDatabase.getInstance(appContext), messages, false);
+        }
+        catch(RuntimeException e){
+            Log.e("SmsReceiver", "Write failed, deferring to WorkManager", e);
+            SmsPersistWorker.enqueue(appContext, messages, false);
+        }
+    }
+
+    private static synchronized Handler getTimeoutHandler(){
+        if(timeoutHandler == null){
+            HandlerThread thread = new HandlerThread("SmsReceiverHandoff");
+            thread.start();
+            timeoutHandler = new Handler(thread.getLooper());
+        }
+        return timeoutHandler;
+    }
+
+    /**
+     * Task handing the messages not seen by a previous process to the running handlers, in this
+     * process, instead of broadcasting them. Each message is either consumed by a listener or, if
+     * every handler lost its listeners meanwhile, written to the database. The broadcast is kept
+     * alive until all of them are settled, or for at most HANDOFF_TIMEOUT_MILLIS: messages still
+     * waiting for a listener by then are written instead.
+     */
+    private static class HandoffTask implements Runnable, InboundDelivery.Callback {
+        private final Context context;
+        private final List<SmsEntity> messages;
+        private final PendingResult result;
+        private final List<InboundDelivery> deliveries = new ArrayList<>();
+        private final AtomicInteger unsettled = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        //Released once every message is settled, for callers waiting on the handoff.
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * @param context the application Context.
+         * @param messages the messages to be handed off.
+         * @param result the result of the broadcast, finished once the messages are settled, may be null.
+         */
+        HandoffTask(Context context, List<SmsEntity> messages, PendingResult result) {
+            this.context = context;
+            this.messages = messages;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            List<SmsEntity> fresh = messages;
+            try{
+                SmsDatabase db = SmsDatabase.getInstance(context);
+                try{
+                    fresh = MessageDeduplicator.filterPersisted(db, messages);
                 }
-                else{
-                    //write new sms to local database asynchronously
-                    Log.d("SmsReceiver", "Writing to database...");
-                    SmsDatabase db = Room.databaseBuilder(context, SmsDatabase.class, SmsHandler.SMS_HANDLER_LOCAL_DATABASE)
-                            .enableMultiInstanceInvalidation()
-                            .build();
-                    new WriteToDbTask(messages,db).execute();
+                catch(RuntimeException e){
+                    Log.e("SmsReceiver", "Duplicate check failed, handing off unchecked", e);
+                }
+                try{
+                    MessageLog.append(db, fresh);
+                }
+                catch(RuntimeException e){
+                    Log.e("SmsReceiver", "Message log write failed", e);
                 }
             }
+            finally{
+                handOff(fresh);
+            }
+        }
+
+        /**
+         * Method handing the messages to the running handlers, falling back to the database for
+         * those nobody holds.
+         * @param fresh the messages to be handed off.
+         */
+        void handOff(List<SmsEntity> fresh){
+            if(fresh.isEmpty()){
+                finish();
+                return;
+            }
+            Log.d("SmsReceiver", "Handing off messages...");
+            //every message must be counted before the first one can settle
+            unsettled.set(fresh.size());
+            for(SmsEntity sms : fresh) deliveries.add(new InboundDelivery(sms, this));
+            getTimeoutHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    timeout();
+                }
+            }, HANDOFF_TIMEOUT_MILLIS);
+            int handed = 0;
+            for(InboundDelivery delivery : deliveries){
+                if(SmsHandler.handOff(delivery) > 0) handed++;
+            }
+            SmsHandler.getMetrics().count(SmsMetrics.COUNTER_FORWARDED, handed);
+        }
+
+        @Override
+        public void onSettled(InboundDelivery delivery, boolean consumed, boolean mustPersist) {
+            SmsHandler.getMetrics().recordLatency(SmsMetrics.STAGE_HANDOFF, SystemClock.elapsedRealtimeNanos() - delivery.handedAt);
+            if(mustPersist) fallBack(delivery.sms);
+            else settled();
+        }
+
+        /**
+         * Method writing the messages no listener claimed yet, then finishing the broadcast once
+         * they are written. Messages being delivered are left to their listeners.
+         */
+        private void timeout(){
+            if(finished.get()) return;
+            for(InboundDelivery delivery : deliveries){
+                if(delivery.persistIfPending()) fallBack(delivery.sms);
+            }
+            try{
+                //runs after the writes just queued
+                persistExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                });
+            }
+            catch(RejectedExecutionException e){
+                finish();
+            }
+        }
+
+        /**
+         * Method writing a message which no listener consumed. The message was already checked for
+         * duplicates and logged by run, so that it's written as it is: checking it again would find
+         * its own fingerprint and drop it.
+         * @param sms the message to be written.
+         */
+        private void fallBack(final SmsEntity sms){
+            SmsHandler.getMetrics().count(SmsMetrics.COUNTER_HANDOFF_FALLBACKS, 1);
+            try{
+                persistExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<SmsEntity> batch = Collections.singletonList(sms);
+                        try{
+                            write(SmsDatabase.getInstance(context), batch, true);
+                        }
+                        catch(RuntimeException e){
+                            Log.e("SmsReceiver", "Write failed, deferring to WorkManager", e);
+                            SmsPersistWorker.enqueue(context, batch, true);
+                        }
+                        finally{
+                            settled();
+                        }
+                    }
+                });
+            }
+            catch(RejectedExecutionException e){
+                Log.w("SmsReceiver", "Persistence backlog full, deferring to WorkManager");
+                SmsPersistWorker.enqueue(context, Collections.singletonList(sms), true);
+                settled();
+            }
+        }
+
+        private void settled(){
+            if(unsettled.decrementAndGet() == 0) finish();
+        }
+
+        private void finish(){
+            if(!finished.compareAndSet(false, true)) return;
+            if(result != null) result.finish();
+            done.countDown();
         }
     }
 
-    private static class WriteToDbTask extends AsyncTask<String,Integer,Void>{
-        private List<SmsMessage> smsMessages;
-        private SmsDatabase db;
+    /**
+     * Task writing the pending messages. By the time it finishes, the messages of its broadcast have
+     * been written, either by itself or by an earlier task, and the broadcast can be finished.
+     */
+    private static class WriteTask implements Runnable {
+        private Context context;
+        private List<SmsEntity> overflow;
+        private PendingResult result;
 
-        WriteToDbTask(List<SmsMessage> smsMessages, SmsDatabase db) {
-            this.smsMessages = smsMessages;
-            this.db = db;
+        /**
+         * @param context the application Context.
+         * @param overflow messages which did not fit in the pending queue, written along with it.
+         * @param result the result of the broadcast, finished once the messages are written, may be null.
+         */
+        WriteTask(Context context, List<SmsEntity> overflow, PendingResult result) {
+            this.context = context;
+            this.overflow = overflow;
+            this.result = result;
         }
 
         @Override
-        protected Void doInBackground(String... strings) {
-            for(SmsMessage sms : smsMessages){
-                SmsEntity s = new SmsEntity(db.access().getCount(),
-                        sms.getOriginatingAddress(),
-                        sms.getDisplayMessageBody());
-                db.access().insert(s);
+        public void run() {
+            List<SmsEntity> batch = takePending(overflow);
+            try{
+                if(!batch.isEmpty()) write(SmsDatabase.getInstance(context), batch, false);
+            }
+            catch(RuntimeException e){
+                Log.e("SmsReceiver", "Write failed, deferring to WorkManager", e);
+                SmsPersistWorker.enqueue(context, batch, false);
+            }
+            finally{
+                if(result != null) result.finish();
             }
-            return null;
         }
     }
 
     /**
-     * Method filtering messages containing SmsHandler.APP_KEY
-     * @param messages array of messages
-     * @return list of messages containing SmsHandler.APP_KEY
+     * Method adding a message to the queue of pending writes.
+     * @param entity the message to be written.
+     * @return true if the message was queued, false if the queue is full.
      */
-    private List<SmsMessage> filter(SmsMessage[] messages){
-        List<SmsMessage> list = new ArrayList<>();
-        if(messages != null){
-            for(SmsMessage sms : messages){
-                if(sms.getMessageBody().contains(SmsHandler.APP_KEY)) list.add(sms);
+    static boolean enqueueWrite(SmsEntity entity){
+        return pendingWrites.offer(entity);
+    }
+
+    /**
+     * Method writing all the pending messages, plus the given ones, in a single transaction.
+     * @param db the database to write to.
+     * @param overflow messages to be written along with the pending ones, may be empty.
+     * @return the number of messages written, 0 if an earlier call already wrote them all.
+     */
+    static int writePending(SmsDatabase db, List<SmsEntity> overflow){
+        List<SmsEntity> batch = takePending(overflow);
+        if(batch.isEmpty()) return 0;
+        return write(db, batch, false);
+    }
+
+    /**
+     * Method writing the messages not seen by a previous process, along with their fingerprints,
+     * in a single transaction.
+     * @param db the database to write to.
+     * @param batch the messages to be written.
+     * @param checked whether the messages were already checked for duplicates and logged, in which
+     *                case they are all written.
+     * @return the number of messages written.
+     */
+    private static int write(final SmsDatabase db, final List<SmsEntity> batch, final boolean checked){
+        SmsMetrics metrics = SmsHandler.getMetrics();
+        Trace.beginSection("SmsReceiver.write");
+        long start = SystemClock.elapsedRealtimeNanos();
+        try{
+            int written = db.runInTransaction(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    if(checked){
+                        db.insertSms(batch);
+                        return batch.size();
+                    }
+                    List<SmsEntity> fresh = MessageDeduplicator.filterPersisted(db, batch);
+                    if(!fresh.isEmpty()) db.insertSms(fresh);
+                    MessageLog.append(db, fresh);
+                    return fresh.size();
+                }
+            });
+            metrics.count(SmsMetrics.COUNTER_PERSISTED, written);
+            return written;
+        }
+        finally{
+            metrics.recordLatency(SmsMetrics.STAGE_DB_WRITE, SystemClock.elapsedRealtimeNanos() - start);
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Method taking all the pending messages out of the queue.
+     * @param overflow messages to be added after the pending ones.
+     * @return the pending messages followed by overflow.
+     */
+    private static List<SmsEntity> takePending(List<SmsEntity> overflow){
+        List<SmsEntity> batch = new ArrayList<>();
+        pendingWrites.drainTo(batch);
+        batch.addAll(overflow);
+        return batch;
+    }
+
+    /**
+     * Method joining the segments of concatenated messages. The platform holds back the segments of
+     * a concatenated message, keyed by sender and reference number, and broadcasts them together
+     * and in order once all of them arrived: consecutive segments from the same sender are therefore
+     * parts of the same message.
+     * @param messages array of messages, as extracted from the broadcast intent
+     * @param arrival the arrival time to be assigned to the messages
+     * @return list of complete messages
+     */
+    static List<SmsEntity> reassemble(SmsMessage[] messages, long arrival){
+        List<SmsEntity> list = new ArrayList<>();
+        if(messages == null) return list;
+        int i = 0;
+        while(i < messages.length){
+            String address = messages[i].getOriginatingAddress();
+            String body = messages[i].getMessageBody();
+            int next = i + 1;
+            if(next < messages.length && sameAddress(address, messages[next].getOriginatingAddress())){
+                StringBuilder sb = new StringBuilder(body != null ? body : "");
+                while(next < messages.length && sameAddress(address, messages[next].getOriginatingAddress())){
+                    String part = messages[next].getMessageBody();
+                    if(part != null) sb.append(part);
+                    next++;
+                }
+                body = sb.toString();
             }
+            SmsEntity sms = new SmsEntity(address, body, arrival);
+            sms.sentTimestamp = messages[i].getTimestampMillis();
+            list.add(sms);
+            i = next;
+        }
+        return list;
+    }
+
+    /**
+     * Method turning data sms carrying binary payloads into messages holding their text form, so that
+     * they are forwarded and stored like text payloads. Malformed payloads are dropped.
+     * @param messages array of messages, as extracted from the broadcast intent
+     * @param arrival the arrival time to be assigned to the messages
+     * @return list of messages whose body is the text form of the payload
+     */
+    static List<SmsEntity> decodePayloads(SmsMessage[] messages, long arrival){
+        List<SmsEntity> list = new ArrayList<>();
+        if(messages == null) return list;
+        for(SmsMessage message : messages){
+            try{
+                SmsPayload payload = SmsPayloadCodec.decodeBinary(message.getUserData());
+                SmsEntity sms = new SmsEntity(message.getOriginatingAddress(), SmsPayloadCodec.encodeText(payload), arrival);
+                sms.sentTimestamp = message.getTimestampMillis();
+                list.add(sms);
+            }
+            catch(IllegalArgumentException e){
+                Log.w("SmsReceiver", "Dropping malformed data sms", e);
+            }
+        }
+        return list;
+    }
+
+    private static boolean sameAddress(String a, String b){
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Method filtering messages starting with SmsHandler.APP_KEY
+     * @param messages list of complete messages
+     * @return list of messages starting with SmsHandler.APP_KEY
+     */
+    static List<SmsEntity> filter(List<SmsEntity> messages){
+        List<SmsEntity> list = new ArrayList<>();
+        for(SmsEntity sms : messages){
+            if(SmsUtils.hasAppKey(sms.body)) list.add(sms);
         }
         return list;
     }
@@ -0,0 +1,585 @@
+package com.dezen.riccardo.smshandler;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import com.dezen.riccardo.smshandler.database.OutboxEntity;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide outbound queue. Messages are persisted to the outbox table and handed to SmsManager
+ * by a single background thread, paced by a token bucket so that bursts are smoothed instead of
+ * being throttled by the OS. Every message carries its outbox id in its sent and delivery intents,
+ * so that results can be matched to it and transient failures retried with exponential backoff.
+ * A message stays in the outbox until it is sent or given up on: messages left by a previous
+ * process, including those whose result never arrived, are sent again. On multi-SIM devices every
+ * attempt goes through the subscription chosen by SubscriptionRouter, see {@link #setRoutingStrategy}.
+ * If the queue's thread fails, e.g. because the outbox can't be written, the Futures of the messages
+ * it was handling complete exceptionally with the cause; messages already in the outbox are sent
+ * again by a following drain, but no longer tracked.
+ */
+public class SmsSendQueue {
+    /**
+     * By default the OS prompts the user when an app sends more than 30 messages in 30 minutes:
+     * the default rate allows a burst of 30 and then one message per minute.
+     */
+    public static final int DEFAULT_BURST = 30;
+    public static final double DEFAULT_RATE = 1.0 / 60;
+    //Maximum number of times a message is handed to SmsManager.
+    public static final int MAX_ATTEMPTS = 5;
+    //Delay before the first retry, doubled on every following one.
+    public static final long BASE_RETRY_DELAY_MS = 5000;
+    public static final long MAX_RETRY_DELAY_MS = 10 * 60 * 1000;
+    //Extra carrying the outbox id of the message in sent and delivered broadcasts.
+    public static final String EXTRA_MESSAGE_ID = "com.dezen.riccardo.smshandler.extra.MESSAGE_ID";
+    //Extra carrying the elapsedRealtimeNanos at which the message was handed to SmsManager.
+    private static final String EXTRA_HANDED_AT = "com.dezen.riccardo.smshandler.extra.HANDED_AT";
+    //Maximum number of rows read from the outbox at once.
+    private static final int DRAIN_BATCH = 20;
+
+    private static SmsSendQueue instance;
+
+    private final Context context;
+    private final SmsDatabase db;
+    private final SubscriptionRouter router;
+    private final ScheduledExecutorService executor;
+    private volatile TokenBucket rateLimiter;
+
+    //Futures and listeners of the messages queued by this process, only accessed from the executor's thread.
+    private final Map<Long, SendFuture> futures = new HashMap<>();
+    //Parts of multipart messages still waiting for their sent result, only accessed from the executor's thread.
+    private final Map<Long, Integer> partsLeft = new HashMap<>();
+    //The next delayed drain and when it's due, in nanoTime, only accessed from the executor's thread.
+    private ScheduledFuture<?> scheduledDrain;
+    private long scheduledDrainAt;
+    //Number of messages in the outbox, only accessed from the executor's thread.
+    private int depth;
+
+    private final Runnable delayedDrainTask = new Guarded() {
+        @Override
+        void runGuarded() {
+            scheduledDrain = null;
+            drain();
+        }
+    };
+
+    /**
+     * Receives the sent results and delivery reports of the messages handed to SmsManager by this queue.
+     */
+    private final BroadcastReceiver sentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final long id = intent.getLongExtra(EXTRA_MESSAGE_ID, -1);
+            final int resultCode = getResultCode();
+            if(id < 0) return;
+            SmsMetrics metrics = SmsHandler.getMetrics();
+            long latency = SystemClock.elapsedRealtimeNanos() - intent.getLongExtra(EXTRA_HANDED_AT, 0);
+            if(SmsHandler.SMS_HANDLER_DELIVERED_BROADCAST.equals(intent.getAction())){
+                metrics.recordLatency(SmsMetrics.STAGE_DELIVERED, latency);
+                metrics.count(SmsMetrics.COUNTER_DELIVERED, 1);
+                return;
+            }
+            metrics.recordLatency(SmsMetrics.STAGE_SENT, latency);
+            metrics.count(resultCode == Activity.RESULT_OK ? SmsMetrics.COUNTER_SENT : SmsMetrics.COUNTER_SEND_FAILED, 1);
+            executor.execute(new Guarded() {
+                @Override
+                void runGuarded() {
+                    onSentResult(id, resultCode);
+                }
+            });
+        }
+    };
+
+    /**
+     * Interface meant to be implemented by classes wanting to follow a queued message. Called on the queue's thread.
+     */
+    public interface OnSmsQueuedListener {
+        /**
+         * Method called once the message has been persisted to the outbox.
+         * @param id the id of the message, carried by its sent and delivered results.
+         */
+        void onQueued(long id);
+
+        /**
+         * Method called every time the message is handed to SmsManager.
+         * @param id the id of the message in the outbox.
+         * @param handedOver true if SmsManager accepted the message, false if it refused it.
+         */
+        void onSendAttempted(long id, boolean handedOver);
+    }
+
+    private SmsSendQueue(Context context){
+        this.context = context.getApplicationContext();
+        db = SmsDatabase.getInstance(this.context);
+        router = new SubscriptionRouter(this.context);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        rateLimiter = new TokenBucket(DEFAULT_BURST, DEFAULT_RATE);
+        IntentFilter filter = new IntentFilter(SmsHandler.SMS_HANDLER_SENT_BROADCAST);
+        filter.addAction(SmsHandler.SMS_HANDLER_DELIVERED_BROADCAST);
+        this.context.registerReceiver(sentReceiver, filter);
+        executor.execute(new Guarded() {
+            @Override
+            void runGuarded() {
+                setDepth(recover(db));
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Method preparing the outbox left by a previous process. The results of the messages it
+     * handed to SmsManager are lost, so they are made pending again and sent once more.
+     * @param db the database holding the outbox.
+     * @return the number of messages in the outbox.
+     */
+    static int recover(SmsDatabase db){
+        db.outbox().resetSending();
+        return db.outbox().getCount();
+    }
+
+    /**
+     * Method returning the process-wide queue, creating it on first access.
+     * @param context any Context, only its application Context is retained.
+     * @return the shared instance of SmsSendQueue.
+     */
+    public static synchronized SmsSendQueue getInstance(Context context){
+        if(instance == null) instance = new SmsSendQueue(context);
+        return instance;
+    }
+
+    /**
+     * Method to change the pacing of the queue. Applies to messages not yet handed to SmsManager.
+     * @param burst how many messages can be sent back-to-back.
+     * @param messagesPerSecond the sustained sending rate.
+     * @throws IllegalArgumentException if burst or messagesPerSecond are not positive.
+     */
+    public void setRateLimit(int burst, double messagesPerSecond){
+        rateLimiter = new TokenBucket(burst, messagesPerSecond);
+    }
+
+    /**
+     * Method to choose how messages are spread over the active subscriptions of multi-SIM devices.
+     * The token bucket is shared, since the OS limits the messages sent by an app whatever the SIM.
+     * @param strategy one of SubscriptionRouter's STRATEGY constants, STRATEGY_ROUND_ROBIN by default.
+     * @throws IllegalArgumentException if strategy is not one of the STRATEGY constants.
+     */
+    public void setRoutingStrategy(int strategy){
+        router.setStrategy(strategy);
+    }
+
+    /**
+     * Method adding a message to the queue. Never blocks: the message is written to the outbox
+     * on the queue's thread.
+     * @param destination the destination address, already validated.
+     * @param body the full text of the message, APP_KEY included.
+     * @param listener optional listener following the message.
+     * @return a Future completed with true once the message is sent, false if SmsManager refused it
+     * or all of its attempts failed. Cancelling the Future before the message is handed to SmsManager
+     * removes it from the queue.
+     */
+    public Future<Boolean> enqueue(String destination, String body, OnSmsQueuedListener listener){
+        return enqueue(destination, body, 0, listener);
+    }
+
+    /**
+     * Method adding a message to the queue, see {@link #enqueue(String, String, OnSmsQueuedListener)}.
+     * @param dataPort if not 0, body must be the text form of a payload, which is sent as a data sms
+     *                 to this port instead. Must fit a single data sms.
+     */
+    Future<Boolean> enqueue(final String destination, final String body, final int dataPort, final OnSmsQueuedListener listener){
+        final SendFuture future = new SendFuture(listener, null, destination, null, null);
+        executor.execute(new Guarded() {
+            @Override
+            void runGuarded() {
+                OutboxEntity row = new OutboxEntity(destination, body, System.currentTimeMillis());
+                row.dataPort = dataPort;
+                long id;
+                try{
+                    id = db.outbox().insert(row);
+                }
+                catch(RuntimeException e){
+                    //never queued, nothing else would complete it
+                    Log.e("SmsSendQueue", "Could not queue a message", e);
+                    future.fail(e);
+                    return;
+                }
+                setDepth(depth + 1);
+                futures.put(id, future);
+                if(listener != null) listener.onQueued(id);
+                drain();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Method adding the same message for several destinations to the queue, in a single transaction.
+     * Never blocks: the messages are written to the outbox on the queue's thread.
+     * @param destinations the destination addresses, already validated and deduplicated.
+     * @param body the full text of the message, APP_KEY included.
+     * @param dataPort if not 0, body must be the text form of a payload, which is sent as a data sms
+     *                 to this port instead. Must fit a single data sms.
+     * @param parts the parts body is sent in, shared by every destination, null for a data sms.
+     * @param data the binary form of the payload, shared by every destination, null for a text message.
+     * @param broadcast the broadcast told when the message to each destination is completed.
+     * @return the Futures of the messages, in the order of destinations, see {@link #enqueue(String, String, OnSmsQueuedListener)}.
+     */
+    List<Future<Boolean>> enqueueAll(final List<String> destinations, final String body, final int dataPort,
+                                     ArrayList<String> parts, byte[] data, SmsBroadcast broadcast){
+        final List<SendFuture> queued = new ArrayList<>(destinations.size());
+        for(String destination : destinations) queued.add(new SendFuture(null, broadcast, destination, parts, data));
+        executor.execute(new Guarded() {
+            @Override
+            void runGuarded() {
+                long now = System.currentTimeMillis();
+                List<OutboxEntity> rows = new ArrayList<>(destinations.size());
+                for(String destination : destinations){
+                    OutboxEntity row = new OutboxEntity(destination, body, now);
+                    row.dataPort = dataPort;
+                    rows.add(row);
+                }
+                long[] ids;
+                try{
+                    ids = db.outbox().insertAll(rows);
+                }
+                catch(RuntimeException e){
+                    Log.e("SmsSendQueue", "Could not queue a broadcast", e);
+                    for(SendFuture future : queued) future.fail(e);
+                    return;
+                }
+                setDepth(depth + ids.length);
+                for(int i = 0; i < ids.length; i++) futures.put(ids[i], queued.get(i));
+                drain();
+            }
+        });
+        return new ArrayList<Future<Boolean>>(queued);
+    }
+
+    /**
+     * @return the number of messages waiting to be handed to SmsManager. Must not be called from the main thread.
+     */
+    public int getPendingCount(){
+        return db.outbox().getPendingCount();
+    }
+
+    /**
+     * Method sending due messages until either none is left or the rate limit is hit. A new drain is
+     * then scheduled for when the next token is available or the next retry is due.
+     */
+    private void drain(){
+        OutboxEntity[] batch;
+        do{
+            batch = db.outbox().loadPending(System.currentTimeMillis(), DRAIN_BATCH);
+            for(OutboxEntity row : batch){
+                SendFuture future = futures.get(row.id);
+                if(future != null && future.isCancelled()){
+                    db.outbox().delete(row.id);
+                    setDepth(depth - 1);
+                    futures.remove(row.id);
+                    continue;
+                }
+                long wait = rateLimiter.tryAcquire();
+                if(wait > 0){
+                    scheduleDrain(wait);
+                    return;
+                }
+                send(row);
+            }
+        }while(batch.length == DRAIN_BATCH);
+        Long nextAttempt = db.outbox().getNextAttemptTime();
+        if(nextAttempt != null)
+            scheduleDrain(TimeUnit.MILLISECONDS.toNanos(Math.max(0, nextAttempt - System.currentTimeMillis())));
+    }
+
+    /**
+     * Method scheduling a drain, unless an earlier one is already scheduled.
+     * @param delayNanos the delay after which the drain should run.
+     */
+    private void scheduleDrain(long delayNanos){
+        long at = System.nanoTime() + delayNanos;
+        if(scheduledDrain != null){
+            if(scheduledDrainAt - at <= 0) return;
+            scheduledDrain.cancel(false);
+        }
+        scheduledDrainAt = at;
+        scheduledDrain = executor.schedule(delayedDrainTask, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void setDepth(int depth){
+        this.depth = depth;
+        SmsHandler.getMetrics().setGauge(SmsMetrics.GAUGE_SEND_QUEUE_DEPTH, depth);
+    }
+
+    private void send(OutboxEntity row){
+        Trace.beginSection("SmsSendQueue.send");
+        try{
+            sendTraced(row);
+        }
+        finally{
+            Trace.endSection();
+        }
+    }
+
+    private void sendTraced(OutboxEntity row){
+        int attempts = row.attempts + 1;
+        db.outbox().updateState(row.id, OutboxEntity.STATE_SENDING, attempts, row.nextAttemptAt);
+        boolean handedOver;
+        try{
+            //chosen again on every attempt, so that a retry may go through a line with service
+            SmsManager smsManager = router.getManager(router.choose(row.destination));
+            PendingIntent sentIntent = resultIntent(SmsHandler.SMS_HANDLER_SENT_BROADCAST, row.id);
+            PendingIntent deliveryIntent = resultIntent(SmsHandler.SMS_HANDLER_DELIVERED_BROADCAST, row.id);
+            //messages of a broadcast come already split, once for all of its recipients
+            SendFuture prepared = futures.get(row.id);
+            if(row.dataPort != 0){
+                //the payload was checked to fit a single data sms when queued
+                byte[] data = prepared != null && prepared.data != null ? prepared.data
+                        : SmsPayloadCodec.encodeBinary(SmsPayloadCodec.decodeText(row.body));
+                partsLeft.put(row.id, 1);
+                smsManager.sendDataMessage(row.destination,null,(short)row.dataPort,data,sentIntent,deliveryIntent);
+            }
+            else{
+                ArrayList<String> parts = prepared != null && prepared.parts != null ? prepared.parts
+                        : smsManager.divideMessage(row.body);
+                partsLeft.put(row.id, parts.size());
+                if(parts.size() == 1){
+                    smsManager.sendTextMessage(row.destination,null,parts.get(0),sentIntent,deliveryIntent);
+                }
+                else{
+                    smsManager.sendMultipartTextMessage(row.destination,null,parts,
+                            repeatIntent(sentIntent, parts.size()),repeatIntent(deliveryIntent, parts.size()));
+                }
+            }
+            handedOver = true;
+        }
+        catch(RuntimeException e){
+            //SmsManager refuses malformed messages with IllegalArgumentException, retrying wouldn't help
+            Log.e("SmsSendQueue", "Message " + row.id + " refused", e);
+            handedOver = false;
+        }
+        SendFuture future = futures.get(row.id);
+        if(future != null) future.onSendAttempted(row.id, handedOver);
+        if(!handedOver) finish(row.id, false);
+    }
+
+    /**
+     * Method handling the sent result of a message, or of a part of it. The message is sent once
+     * all of its parts are, and retried as a whole as soon as one of them fails.
+     * @param id the id of the message in the outbox.
+     * @param resultCode the result code of the sent broadcast.
+     */
+    private void onSentResult(long id, int resultCode){
+        Integer left = partsLeft.get(id);
+        //results of parts following a failure, the message is already being retried
+        if(left == null) return;
+        if(resultCode == Activity.RESULT_OK){
+            if(left > 1) partsLeft.put(id, left - 1);
+            else finish(id, true);
+            return;
+        }
+        partsLeft.remove(id);
+        OutboxEntity row = db.outbox().get(id);
+        if(row == null) return;
+        long retryAt = retryAt(resultCode, row.attempts, System.currentTimeMillis());
+        if(retryAt >= 0){
+            Log.d("SmsSendQueue", "Message " + id + " failed with " + resultCode + ", retrying in " + retryDelay(row.attempts) + "ms");
+            db.outbox().updateState(id, OutboxEntity.STATE_PENDING, row.attempts, retryAt);
+            drain();
+        }
+        else finish(id, false);
+    }
+
+    /**
+     * Method deciding whether a failed message is retried, and when.
+     * @param resultCode the result code of the failed attempt.
+     * @param attempts the number of attempts made so far, the failed one included.
+     * @param now the current time, in milliseconds since epoch.
+     * @return the time the message is retried at, in milliseconds since epoch, -1 if it's given up on.
+     */
+    static long retryAt(int resultCode, int attempts, long now){
+        if(!isTransient(resultCode) || attempts >= MAX_ATTEMPTS) return -1;
+        return now + retryDelay(attempts);
+    }
+
+    /**
+     * @param attempts the number of attempts made so far, at least 1.
+     * @return the delay before the next attempt: BASE_RETRY_DELAY_MS after the first, doubled after
+     * every following one, at most MAX_RETRY_DELAY_MS.
+     */
+    static long retryDelay(int attempts){
+        //shifting any further would only overflow, the cap is long reached
+        int doublings = Math.min(attempts - 1, 32);
+        return Math.min(MAX_RETRY_DELAY_MS, BASE_RETRY_DELAY_MS << doublings);
+    }
+
+    private void finish(long id, boolean sent){
+        partsLeft.remove(id);
+        if(db.outbox().delete(id) > 0) setDepth(depth - 1);
+        SendFuture future = futures.remove(id);
+        if(future != null) future.complete(sent);
+    }
+
+    /**
+     * @param resultCode the result code of a sent broadcast.
+     * @return true if the failure depends on the radio state, and the message may go through later.
+     */
+    private static boolean isTransient(int resultCode){
+        return resultCode == SmsManager.RESULT_ERROR_GENERIC_FAILURE
+                || resultCode == SmsManager.RESULT_ERROR_RADIO_OFF
+                || resultCode == SmsManager.RESULT_ERROR_NO_SERVICE;
+    }
+
+    /**
+     * Method building a PendingIntent carrying the id of the message. The id is also used as the
+     * request code, so that the intents of different messages are not merged by the system.
+     * @param action the action of the broadcast.
+     * @param id the id of the message in the outbox.
+     */
+    private PendingIntent resultIntent(String action, long id){
+        Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_MESSAGE_ID, id);
+        intent.putExtra(EXTRA_HANDED_AT, SystemClock.elapsedRealtimeNanos());
+        return PendingIntent.getBroadcast(context, (int)id, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Method building the list of PendingIntents for a multipart message, one for each part.
+     * @param intent the intent to be fired for each part.
+     * @param parts the number of parts of the message.
+     * @return a list containing intent once for each part.
+     */
+    private static ArrayList<PendingIntent> repeatIntent(PendingIntent intent, int parts){
+        ArrayList<PendingIntent> intents = new ArrayList<>(parts);
+        for(int i = 0; i < parts; i++) intents.add(intent);
+        return intents;
+    }
+
+    /**
+     * Task run on the queue's thread. If it fails, every message the queue is following is
+     * completed exceptionally, so that no caller waits forever for a result that can't come.
+     */
+    private abstract class Guarded implements Runnable {
+        abstract void runGuarded();
+
+        @Override
+        public final void run() {
+            try{
+                runGuarded();
+            }
+            catch(RuntimeException e){
+                Log.e("SmsSendQueue", "Queue task failed, failing the messages it was following", e);
+                for(SendFuture future : futures.values()) future.fail(e);
+                futures.clear();
+                partsLeft.clear();
+            }
+        }
+    }
+
+    /**
+     * Future completed by the queue itself, once the message is sent, given up on or the queue
+     * fails. Tells its broadcast, if any, once completed or cancelled.
+     */
+    private static class SendFuture implements Future<Boolean> {
+        private final OnSmsQueuedListener listener;
+        private final SmsBroadcast broadcast;
+        private final String destination;
+        //The message already split, shared by the recipients of a broadcast, null if it must be split when sent.
+        final ArrayList<String> parts;
+        final byte[] data;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        //Set once, before done is counted down.
+        private volatile boolean sent;
+        private volatile boolean cancelled;
+        private volatile Throwable failure;
+
+        SendFuture(OnSmsQueuedListener listener, SmsBroadcast broadcast, String destination,
+                   ArrayList<String> parts, byte[] data){
+            this.listener = listener;
+            this.broadcast = broadcast;
+            this.destination = destination;
+            this.parts = parts;
+            this.data = data;
+        }
+
+        void onSendAttempted(long id, boolean handedOver){
+            if(listener != null) listener.onSendAttempted(id, handedOver);
+        }
+
+        void complete(boolean sent){
+            if(!completed.compareAndSet(false, true)) return;
+            this.sent = sent;
+            done();
+        }
+
+        void fail(Throwable failure){
+            if(!completed.compareAndSet(false, true)) return;
+            this.failure = failure;
+            done();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(!completed.compareAndSet(false, true)) return false;
+            cancelled = true;
+            done();
+            return true;
+        }
+
+        private void done(){
+            done.countDown();
+            if(broadcast != null) broadcast.onResult(destination, sent);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if(!done.await(timeout, unit)) throw new TimeoutException();
+            return result();
+        }
+
+        private Boolean result() throws ExecutionException {
+            if(cancelled) throw new CancellationException();
+            if(failure != null) throw new ExecutionException(failure);
+            return sent;
+        }
+    }
+}
@@ -1,26 +1,184 @@
 package com.dezen.riccardo.smshandler;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.os.AsyncTask;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.provider.Telephony;
 import android.util.Log;
 
-import androidx.room.Room;
-
 import com.dezen.riccardo.smshandler.database.SmsDatabase;
 import com.dezen.riccardo.smshandler.database.SmsEntity;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class SmsUtils {
+    //Runs LogTasks, instead of AsyncTask's executor shared with the rest of the app.
+    private static final Executor logExecutor = Executors.newSingleThreadExecutor();
+    //Whether the sms provider ignored the limit query argument, in which case it's passed through the sort order.
+    private static volatile boolean limitArgIgnored;
     private static String[] inboxProjection = {
             Telephony.Sms._ID,
             Telephony.Sms.ADDRESS,
             Telephony.Sms.SUBJECT,
             Telephony.Sms.BODY
     };
+    //The subscription column only exists from API 22.
+    private static String[] readProjection = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+            ? new String[]{
+                    Telephony.Sms._ID,
+                    Telephony.Sms.ADDRESS,
+                    Telephony.Sms.BODY,
+                    Telephony.Sms.DATE,
+                    Telephony.Sms.DATE_SENT,
+                    Telephony.Sms.SUBSCRIPTION_ID}
+            : new String[]{
+                    Telephony.Sms._ID,
+                    Telephony.Sms.ADDRESS,
+                    Telephony.Sms.BODY,
+                    Telephony.Sms.DATE,
+                    Telephony.Sms.DATE_SENT};
+    /**
+     * Method checking whether a message body starts with SmsHandler.APP_KEY. Works directly on the
+     * given characters, so that no String or substring is allocated and non-matching bodies are
+     * discarded after the first differing character.
+     * @param body the body of the message, may be null.
+     * @return true if body starts with SmsHandler.APP_KEY, false otherwise.
+     */
+    public static boolean hasAppKey(CharSequence body){
+        String key = SmsHandler.APP_KEY;
+        if(body == null || body.length() < key.length()) return false;
+        for(int i = 0; i < key.length(); i++){
+            if(body.charAt(i) != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Method checking whether a text contains SmsHandler.APP_KEY anywhere, e.g. after the contact
+     * name in a notification. Like {@link #hasAppKey} it works directly on the given characters.
+     * @param text the text to search, may be null.
+     * @return true if text contains SmsHandler.APP_KEY, false otherwise.
+     */
+    public static boolean containsAppKey(CharSequence text){
+        String key = SmsHandler.APP_KEY;
+        if(text == null) return false;
+        int last = text.length() - key.length();
+        for(int start = 0; start <= last; start++){
+            int i = 0;
+            while(i < key.length() && text.charAt(start + i) == key.charAt(i)) i++;
+            if(i == key.length()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Interface meant to be implemented by classes reading the inbox through {@link #readInbox}.
+     */
+    public interface OnInboxMessageListener {
+        /**
+         * Method called for each message read, in ascending _ID order.
+         * @param message the message read.
+         * @return true to keep reading, false to stop.
+         */
+        boolean onInboxMessage(InboxMessage message);
+    }
+
+    /**
+     * Method reading the system sms inbox, streaming the matching messages to a listener. Rows are
+     * read in pages using keyset pagination on _ID, so that only one page is held by a Cursor at any
+     * time however large the inbox is. Must not be called from the main thread.
+     * @param context any Context.
+     * @param query the filters to apply.
+     * @param listener the listener receiving the messages, on the calling thread.
+     * @return the _ID of the last message read, or the query's starting _ID if none was read.
+     */
+    public static long readInbox(Context context, InboxQuery query, OnInboxMessageListener listener){
+        long lastId = query.afterId;
+        int read = 0;
+        int pageRows;
+        do{
+            int pageSize = query.limit > 0 ? Math.min(query.pageSize, query.limit - read) : query.pageSize;
+            List<String> args = new ArrayList<>();
+            String selection = query.selection(lastId, args);
+            Cursor cursor = queryPage(context, Telephony.Sms.Inbox.CONTENT_URI, readProjection, selection,
+                    args.toArray(new String[0]), Telephony.Sms._ID + " ASC", pageSize);
+            if(cursor == null) break;
+            pageRows = 0;
+            try{
+                int idColumn = cursor.getColumnIndexOrThrow(Telephony.Sms._ID);
+                int addressColumn = cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS);
+                int bodyColumn = cursor.getColumnIndexOrThrow(Telephony.Sms.BODY);
+                int dateColumn = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE);
+                int dateSentColumn = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE_SENT);
+                int subscriptionColumn = readProjection.length > 5 ? cursor.getColumnIndex(readProjection[5]) : -1;
+                //a provider ignoring the limit is still read one page at a time
+                while(pageRows < pageSize && cursor.moveToNext()){
+                    pageRows++;
+                    InboxMessage message = new InboxMessage(cursor.getLong(idColumn),
+                            cursor.getString(addressColumn),
+                            cursor.getString(bodyColumn),
+                            cursor.getLong(dateColumn),
+                            cursor.getLong(dateSentColumn),
+                            subscriptionColumn >= 0 ? cursor.getInt(subscriptionColumn) : SubscriptionRouter.NO_SUBSCRIPTION);
+                    lastId = message.id;
+                    read++;
+                    if(!listener.onInboxMessage(message)) return lastId;
+                }
+            }
+            finally{
+                cursor.close();
+            }
+        }while(pageRows == query.pageSize && (query.limit <= 0 || read < query.limit));
+        return lastId;
+    }
+
+    /**
+     * Method querying at most limit rows of a provider. From API 26 the limit and the sort order are
+     * passed as query arguments. Before that the sort order is the only way to pass a limit: the sms
+     * provider appends it to its query, so it's passed as "sortOrder LIMIT limit". The same is done
+     * from API 26 if the provider reports that it ignored the limit argument.
+     * @param context any Context.
+     * @param uri the content uri to query.
+     * @param projection the columns to read.
+     * @param selection the selection, with ? for its arguments, may be null.
+     * @param selectionArgs the arguments of selection, may be null.
+     * @param sortOrder the order of the rows, without any LIMIT clause.
+     * @param limit the maximum number of rows.
+     * @return the cursor over the rows, null if the provider can't be reached.
+     */
+    static Cursor queryPage(Context context, Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder, int limit){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !limitArgIgnored){
+            Bundle args = new Bundle();
+            args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            args.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+            args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+            args.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+            Cursor cursor = context.getContentResolver().query(uri, projection, args, null);
+            if(cursor == null) return null;
+            String[] honored = cursor.getExtras().getStringArray(ContentResolver.EXTRA_HONORED_ARGS);
+            if(honored != null && Arrays.asList(honored).contains(ContentResolver.QUERY_ARG_LIMIT)) return cursor;
+            //the whole selection was queried, not worth keeping
+            cursor.close();
+            limitArgIgnored = true;
+        }
+        return context.getContentResolver().query(uri, projection, selection, selectionArgs,
+                sortOrder + " LIMIT " + limit);
+    }
+
+    /**
+     * Method reading the whole system sms provider. Prefer {@link #readInbox}, which doesn't need to
+     * hold the whole result in memory.
+     * @param context any Context.
+     * @return list containing "_ID ADDRESS SUBJECT BODY" for each message.
+     */
     public static List<String> getInbox(Context context){
         List<String> list = new ArrayList<>();
         String[] selectionArgs = null;
@@ -29,44 +187,46 @@ public class SmsUtils {
                 Telephony.Sms.CONTENT_URI,
                 inboxProjection, selectionClause, selectionArgs,
                 Telephony.Sms._ID);
-        if(mCursor != null && mCursor.getCount() >= 1){
-            mCursor.moveToFirst();
-            while(!mCursor.isLast()){
+        if(mCursor != null){
+            while(mCursor.moveToNext()){
                 StringBuilder sb = new StringBuilder()
                         .append(mCursor.getString(0)).append(" ")
                         .append(mCursor.getString(1)).append(" ")
                         .append(mCursor.getString(2)).append(" ")
                         .append(mCursor.getString(3));
                 list.add(sb.toString());
-                Log.d("SMSUtils", sb.toString());
-                mCursor.moveToNext();
             }
             mCursor.close();
         }
         return list;
     }
 
-
+    /**
+     * Method clearing the unread messages from the database and logging how many they were, on a
+     * background thread. Bodies are never logged, since they may be stored encrypted.
+     * @param context any Context.
+     */
     public static void logUnreadMessages(Context context){
-        new LogTask(context).execute();
+        logExecutor.execute(new LogTask(context.getApplicationContext()));
     }
 
-    private static class LogTask extends AsyncTask<String, Integer, Void>{
+    private static class LogTask implements Runnable {
         private Context context;
         public LogTask(Context context){
             this.context = context;
         }
         @Override
-        protected Void doInBackground(String... strings) {
-            SmsDatabase db = Room.databaseBuilder(context, SmsDatabase.class, SmsHandler.SMS_HANDLER_LOCAL_DATABASE)
-                    .enableMultiInstanceInvalidation()
-                    .build();
-            SmsEntity[] messages = db.access().loadAllSms();
-            for(SmsEntity sms : messages){
-                db.access().deleteSms(sms);
-                Log.e("Unread Message", sms.address+" "+sms.body);
-            }
-            return null;
+        public void run() {
+            SmsDatabase db = SmsDatabase.getInstance(context);
+            List<SmsEntity> page = new ArrayList<>(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+            int taken;
+            int total = 0;
+            do{
+                page.clear();
+                taken = db.takeSmsPage(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE, page);
+                total += taken;
+            }while(taken == SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+            Log.d("SmsUtils", "Cleared " + total + " unread messages");
         }
     }
 }
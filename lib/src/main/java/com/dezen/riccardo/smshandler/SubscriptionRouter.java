@@ -0,0 +1,180 @@
+package com.dezen.riccardo.smshandler;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.telephony.SmsManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the subscription, i.e. the SIM, each outgoing message is sent through, keeping one
+ * SmsManager per active subscription. The active subscriptions are read again whenever the system
+ * reports a change, and at least every REFRESH_INTERVAL_MS. Reading them needs READ_PHONE_STATE,
+ * which the library doesn't declare: apps sending through several SIMs must declare and request it.
+ * Without it, or on single-SIM devices, every message goes through the default SmsManager.
+ * Only used from SmsSendQueue's thread, except for setStrategy.
+ */
+public class SubscriptionRouter {
+    //Subscription id of messages sent through, or received from, an unknown or default subscription.
+    public static final int NO_SUBSCRIPTION = -1;
+    //Subscriptions are used in turn.
+    public static final int STRATEGY_ROUND_ROBIN = 0;
+    //The subscription which least recently had a message handed to it is used.
+    public static final int STRATEGY_LEAST_RECENTLY_USED = 1;
+    //Messages to the same recipient always go through the same subscription, chosen in turn.
+    public static final int STRATEGY_STICKY = 2;
+    //Extra carrying the subscription of incoming messages in SMS_RECEIVED broadcasts.
+    static final String EXTRA_SUBSCRIPTION = "subscription";
+    //Maximum number of recipients whose subscription is remembered by STRATEGY_STICKY.
+    static final int MAX_STICKY_RECIPIENTS = 1024;
+    //Longest time the active subscriptions are trusted, in case a change or a permission grant goes unnoticed.
+    static final long REFRESH_INTERVAL_MS = 5 * 60 * 1000;
+
+    private final Context context;
+    private volatile int strategy = STRATEGY_ROUND_ROBIN;
+    //Set by the system's callback, on the main thread, when the subscriptions must be read again.
+    private volatile boolean stale = true;
+    //Time of the last read of the active subscriptions, in elapsedRealtime.
+    private long refreshedAt;
+    //Active subscription ids, ascending, and their managers.
+    private int[] subscriptions = new int[0];
+    private final Map<Integer, SmsManager> managers = new HashMap<>();
+    //Next position in subscriptions for STRATEGY_ROUND_ROBIN and for new STRATEGY_STICKY recipients.
+    private int cursor;
+    //Value of uses at the last time each subscription was chosen, for STRATEGY_LEAST_RECENTLY_USED.
+    private final Map<Integer, Long> lastUsed = new HashMap<>();
+    private long uses;
+    //Subscription of the most recent recipients, least recently used first.
+    private final Map<String, Integer> sticky = new LinkedHashMap<String, Integer>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_STICKY_RECIPIENTS;
+        }
+    };
+
+    /**
+     * @param context the application Context.
+     */
+    SubscriptionRouter(Context context){
+        this.context = context;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1){
+            //the listener needs a Looper, and is called back on it
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    SubscriptionManager.from(SubscriptionRouter.this.context).addOnSubscriptionsChangedListener(
+                            new SubscriptionManager.OnSubscriptionsChangedListener(){
+                                @Override
+                                public void onSubscriptionsChanged() {
+                                    stale = true;
+                                }
+                            });
+                }
+            });
+        }
+    }
+
+    /**
+     * @param strategy one of the STRATEGY constants.
+     * @throws IllegalArgumentException if strategy is not one of the STRATEGY constants.
+     */
+    void setStrategy(int strategy){
+        if(strategy < STRATEGY_ROUND_ROBIN || strategy > STRATEGY_STICKY)
+            throw new IllegalArgumentException("Unknown strategy " + strategy);
+        this.strategy = strategy;
+    }
+
+    /**
+     * Method choosing the subscription the next message to destination is sent through.
+     * @param destination the destination address of the message.
+     * @return the id of an active subscription, NO_SUBSCRIPTION if they are unknown.
+     */
+    int choose(String destination){
+        if(stale || SystemClock.elapsedRealtime() - refreshedAt > REFRESH_INTERVAL_MS) refresh();
+        if(subscriptions.length == 0) return NO_SUBSCRIPTION;
+        int chosen;
+        if(strategy == STRATEGY_LEAST_RECENTLY_USED){
+            chosen = subscriptions[0];
+            for(int id : subscriptions){
+                Long used = lastUsed.get(id);
+                if(used == null){
+                    chosen = id;
+                    break;
+                }
+                if(used < lastUsed.get(chosen)) chosen = id;
+            }
+        }
+        else if(strategy == STRATEGY_STICKY){
+            Integer previous = sticky.get(destination);
+            chosen = previous != null && managers.containsKey(previous) ? previous : next();
+            sticky.put(destination, chosen);
+        }
+        else chosen = next();
+        lastUsed.put(chosen, ++uses);
+        return chosen;
+    }
+
+    /**
+     * @param subscriptionId a subscription id returned by {@link #choose}.
+     * @return the SmsManager of the subscription, the default one if it's no longer active.
+     */
+    SmsManager getManager(int subscriptionId){
+        SmsManager manager = managers.get(subscriptionId);
+        return manager != null ? manager : SmsManager.getDefault();
+    }
+
+    private int next(){
+        if(cursor >= subscriptions.length) cursor = 0;
+        return subscriptions[cursor++];
+    }
+
+    /**
+     * Method reading the active subscriptions, dropping the state of those no longer active.
+     */
+    private void refresh(){
+        stale = false;
+        refreshedAt = SystemClock.elapsedRealtime();
+        managers.clear();
+        int[] ids = new int[0];
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1 && canReadPhoneState()){
+            try{
+                List<SubscriptionInfo> infos = SubscriptionManager.from(context).getActiveSubscriptionInfoList();
+                //a single subscription is the default one, no need to address it explicitly
+                if(infos != null && infos.size() > 1){
+                    ids = new int[infos.size()];
+                    for(int i = 0; i < ids.length; i++) ids[i] = infos.get(i).getSubscriptionId();
+                    Arrays.sort(ids);
+                    for(int id : ids) managers.put(id, SmsManager.getSmsManagerForSubscriptionId(id));
+                }
+            }
+            catch(SecurityException e){
+                //revoked meanwhile
+                Log.w("SubscriptionRouter", "READ_PHONE_STATE not granted, using the default subscription");
+            }
+        }
+        lastUsed.keySet().retainAll(managers.keySet());
+        subscriptions = ids;
+        Log.d("SubscriptionRouter", "Active subscriptions " + Arrays.toString(ids));
+    }
+
+    /**
+     * @return whether READ_PHONE_STATE is declared by the app and granted.
+     */
+    private boolean canReadPhoneState(){
+        return context.checkPermission(Manifest.permission.READ_PHONE_STATE, Process.myPid(), Process.myUid())
+                == PackageManager.PERMISSION_GRANTED;
+    }
+}
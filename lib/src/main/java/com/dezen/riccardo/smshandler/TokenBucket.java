@@ -0,0 +1,61 @@
+package com.dezen.riccardo.smshandler;
+
+/**
+ * Token bucket rate limiter. Holds up to capacity tokens, refilled at a constant rate: bursts up to
+ * capacity go through immediately, after that one token becomes available every 1/rate seconds.
+ * Thread safe.
+ */
+public class TokenBucket {
+    /**
+     * Source of the current time, replaced in tests.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final Clock clock;
+    private final int capacity;
+    private final double nanosPerToken;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity the maximum number of tokens the bucket can hold, the bucket starts full.
+     * @param tokensPerSecond the rate at which tokens are added to the bucket.
+     * @throws IllegalArgumentException if capacity or tokensPerSecond are not positive.
+     */
+    public TokenBucket(int capacity, double tokensPerSecond){
+        this(capacity, tokensPerSecond, SYSTEM_CLOCK);
+    }
+
+    TokenBucket(int capacity, double tokensPerSecond, Clock clock){
+        if(capacity < 1 || tokensPerSecond <= 0) throw new IllegalArgumentException("Capacity and rate must be positive.");
+        this.clock = clock;
+        this.capacity = capacity;
+        this.nanosPerToken = 1e9 / tokensPerSecond;
+        this.tokens = capacity;
+        this.lastRefill = clock.nanoTime();
+    }
+
+    /**
+     * Method trying to take a token from the bucket.
+     * @return 0 if a token was taken, otherwise the time in nanoseconds before one becomes available.
+     */
+    public synchronized long tryAcquire(){
+        long now = clock.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / nanosPerToken);
+        lastRefill = now;
+        if(tokens >= 1){
+            tokens -= 1;
+            return 0;
+        }
+        return (long)Math.ceil((1 - tokens) * nanosPerToken);
+    }
+}
@@ -0,0 +1,39 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * Queries on the message log. Pages are read newest first with keyset pagination: a page starts
+ * right after the (timestamp, id) of the last row of the previous one, so that reading a page never
+ * skips over the earlier ones as OFFSET would. Row values aren't supported by the SQLite of older
+ * devices, hence the expanded comparison.
+ */
+@Dao
+public interface MessageLogDao{
+    @Insert
+    public void insert(List<MessageLogEntity> entities);
+    @Query("SELECT * FROM message_log WHERE address = :address "
+            + "AND (timestamp < :beforeTimestamp OR (timestamp = :beforeTimestamp AND id < :beforeId)) "
+            + "ORDER BY timestamp DESC, id DESC LIMIT :limit")
+    public MessageLogEntity[] loadBySender(String address, long beforeTimestamp, long beforeId, int limit);
+    @Query("SELECT * FROM message_log WHERE timestamp >= :from AND timestamp < :to "
+            + "AND (timestamp < :beforeTimestamp OR (timestamp = :beforeTimestamp AND id < :beforeId)) "
+            + "ORDER BY timestamp DESC, id DESC LIMIT :limit")
+    public MessageLogEntity[] loadByTime(long from, long to, long beforeTimestamp, long beforeId, int limit);
+    @Query("SELECT message_log.* FROM message_log JOIN message_log_fts ON message_log.id = message_log_fts.rowid "
+            + "WHERE message_log_fts MATCH :match "
+            + "AND (timestamp < :beforeTimestamp OR (timestamp = :beforeTimestamp AND id < :beforeId)) "
+            + "ORDER BY timestamp DESC, id DESC LIMIT :limit")
+    public MessageLogEntity[] search(String match, long beforeTimestamp, long beforeId, int limit);
+    @Query("DELETE FROM message_log WHERE timestamp < :before")
+    public int deleteBefore(long before);
+    //Keeps the newest maxRows rows, ids follow the order of insertion.
+    @Query("DELETE FROM message_log WHERE id <= (SELECT id FROM message_log ORDER BY id DESC LIMIT 1 OFFSET :maxRows)")
+    public int deleteOldestBeyond(int maxRows);
+    @Query("SELECT COUNT(id) FROM message_log")
+    public int getCount();
+}
@@ -0,0 +1,38 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Row of the message log, a copy of an incoming message kept after it's delivered, until the
+ * retention policy of MessageLog prunes it. Rows are paged newest first by (timestamp, id): the
+ * index on (address, timestamp) also serves sender queries, since SQLite appends the id to every index.
+ */
+@Entity(tableName = "message_log", indices = {@Index(value = {"address", "timestamp"}), @Index(value = "timestamp")})
+public class MessageLogEntity{
+    /**
+     * @param address the originating address of the message.
+     * @param body the body of the message.
+     * @param timestamp the arrival time of the message, in milliseconds since epoch.
+     * @param subscriptionId the subscription the message was received on.
+     */
+    public MessageLogEntity(String address, String body, long timestamp, int subscriptionId) {
+        this.address = address;
+        this.body = body;
+        this.timestamp = timestamp;
+        this.subscriptionId = subscriptionId;
+    }
+    //Also the rowid of the message in message_log_fts.
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+    @ColumnInfo(name = "address")
+    public String address;
+    @ColumnInfo(name = "body")
+    public String body;
+    @ColumnInfo(name = "timestamp")
+    public long timestamp;
+    @ColumnInfo(name = "subscription_id")
+    public int subscriptionId;
+}
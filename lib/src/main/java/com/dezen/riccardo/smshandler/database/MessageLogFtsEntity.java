@@ -0,0 +1,21 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+import androidx.room.PrimaryKey;
+
+/**
+ * Full-text index over the bodies of message_log. External content table: bodies are stored once,
+ * in message_log, and the index is kept in sync by triggers.
+ */
+@Fts4(contentEntity = MessageLogEntity.class)
+@Entity(tableName = "message_log_fts")
+public class MessageLogFtsEntity{
+    //The id of the message in message_log.
+    @PrimaryKey
+    @ColumnInfo(name = "rowid")
+    public long rowid;
+    @ColumnInfo(name = "body")
+    public String body;
+}
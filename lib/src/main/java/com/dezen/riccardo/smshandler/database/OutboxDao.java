@@ -0,0 +1,31 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface OutboxDao{
+    @Insert
+    public long insert(OutboxEntity entity);
+    @Insert
+    public long[] insertAll(List<OutboxEntity> entities);
+    @Query("SELECT * FROM outbox WHERE id = :id")
+    public OutboxEntity get(long id);
+    @Query("SELECT * FROM outbox WHERE state = 0 AND next_attempt_at <= :now ORDER BY id LIMIT :limit")
+    public OutboxEntity[] loadPending(long now, int limit);
+    @Query("SELECT MIN(next_attempt_at) FROM outbox WHERE state = 0")
+    public Long getNextAttemptTime();
+    @Query("UPDATE outbox SET state = :state, attempts = :attempts, next_attempt_at = :nextAttemptAt WHERE id = :id")
+    public int updateState(long id, int state, int attempts, long nextAttemptAt);
+    @Query("UPDATE outbox SET state = 0 WHERE state = 1")
+    public int resetSending();
+    @Query("DELETE FROM outbox WHERE id = :id")
+    public int delete(long id);
+    @Query("SELECT COUNT(id) FROM outbox WHERE state = 0")
+    public int getPendingCount();
+    @Query("SELECT COUNT(id) FROM outbox")
+    public int getCount();
+}
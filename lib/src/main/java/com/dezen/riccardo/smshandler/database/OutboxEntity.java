@@ -0,0 +1,46 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+@Entity(tableName = "outbox", indices = {@Index(value = "state")})
+public class OutboxEntity{
+    //Waiting to be handed to SmsManager, possibly for a retry.
+    public static final int STATE_PENDING = 0;
+    //Handed to SmsManager, waiting for the sent result.
+    public static final int STATE_SENDING = 1;
+
+    /**
+     * @param destination the destination address of the message.
+     * @param body the full text of the message, APP_KEY included.
+     * @param createdAt the time the message was queued, in milliseconds since epoch.
+     */
+    public OutboxEntity(String destination, String body, long createdAt) {
+        this.destination = destination;
+        this.body = body;
+        this.createdAt = createdAt;
+        this.state = STATE_PENDING;
+    }
+    //Assigned by the database on insertion, strictly increasing in order of insertion.
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+    @ColumnInfo(name = "destination")
+    public String destination;
+    @ColumnInfo(name = "body")
+    public String body;
+    @ColumnInfo(name = "state")
+    public int state;
+    @ColumnInfo(name = "created_at")
+    public long createdAt;
+    //Number of times the message was handed to SmsManager.
+    @ColumnInfo(name = "attempts", defaultValue = "0")
+    public int attempts;
+    //Time before which the message must not be sent, in milliseconds since epoch.
+    @ColumnInfo(name = "next_attempt_at", defaultValue = "0")
+    public long nextAttemptAt;
+    //Destination port if the body is a payload to be sent as a data sms, 0 for text messages.
+    @ColumnInfo(name = "data_port", defaultValue = "0")
+    public int dataPort;
+}
@@ -0,0 +1,15 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface SeenMessageDao{
+    //Returns -1 for messages already seen, so that checking and marking take a single statement.
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    public long insert(SeenMessageEntity message);
+    @Query("DELETE FROM seen_message WHERE seen_at < :before")
+    public int deleteSeenBefore(long before);
+}
@@ -0,0 +1,23 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+@Entity(tableName = "seen_message", indices = {@Index(value = "seen_at")})
+public class SeenMessageEntity{
+    /**
+     * @param fingerprint hash of the sender, timestamp and body of the message.
+     * @param seenAt the time the message was first seen, in milliseconds since epoch.
+     */
+    public SeenMessageEntity(long fingerprint, long seenAt) {
+        this.fingerprint = fingerprint;
+        this.seenAt = seenAt;
+    }
+    //Looked up through the primary key index, so that checking a message never scans the table.
+    @PrimaryKey
+    public long fingerprint;
+    @ColumnInfo(name = "seen_at")
+    public long seenAt;
+}
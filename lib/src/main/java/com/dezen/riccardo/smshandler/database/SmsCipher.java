@@ -0,0 +1,324 @@
+package com.dezen.riccardo.smshandler.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Opt-in encryption of the bodies of the messages waiting in SmsEntity. Each body is sealed with
+ * AES-GCM, under a random data key and bound to the sender's address, and stored as
+ * ENCRYPTED_PREFIX followed by the Base64 of the IV and the ciphertext. The data key is stored
+ * wrapped by a key held in the Android Keystore, and unwrapped once per process: rows are then
+ * sealed and opened in memory, without a Keystore call each. Plaintext rows, written before
+ * encryption was enabled or after it was disabled, are read as they are.
+ * The message log can't be encrypted, since its full-text index needs the plaintext: nothing is
+ * logged while encryption is enabled, see MessageLog.enable.
+ */
+public final class SmsCipher {
+    //Prefix of sealed bodies, which can't start with it since incoming bodies start with APP_KEY.
+    static final String ENCRYPTED_PREFIX = "\u0001v1:";
+    private static final String PREFERENCES = "com.dezen.riccardo.smshandler.cipher";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_WRAPPED = "wrapped_key";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEYSTORE_ALIAS = "SmsHandlerStoreKey";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int DATA_KEY_BYTES = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final SecureRandom random = new SecureRandom();
+    //Cipher.getInstance is slow and Ciphers aren't thread safe, every thread keeps its own.
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try{
+                return Cipher.getInstance(TRANSFORMATION);
+            }
+            catch(GeneralSecurityException e){
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    //Application Context, known once the database is built. Null until then.
+    private static volatile Context context;
+    //Whether new rows are sealed, read from the preferences on first use. Null until then.
+    private static volatile Boolean enabled;
+    //The unwrapped data key, cached for the lifetime of the process. Null until first needed.
+    private static volatile SecretKey dataKey;
+
+    private SmsCipher(){}
+
+    /**
+     * Method remembering the application Context, so that the data key can be unwrapped on demand.
+     * @param context any Context.
+     */
+    static void attach(Context context){
+        if(SmsCipher.context == null) SmsCipher.context = context.getApplicationContext();
+    }
+
+    /**
+     * Method to choose whether the bodies of the messages written from now on are encrypted. The
+     * choice is persisted. Messages already written are left as they are, and can still be read.
+     * Enabling creates the keys on first use, which may take a while: should not be called from the
+     * main thread. While enabled, MessageLog logs nothing, so that bodies are never stored in the clear.
+     * @param context any Context.
+     * @param encrypt whether new messages should be encrypted.
+     * @throws IllegalStateException if encryption is requested below API 23, or the Keystore fails.
+     */
+    public static synchronized void setEnabled(Context context, boolean encrypt){
+        attach(context);
+        if(encrypt){
+            if(Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+                throw new IllegalStateException("Store encryption needs the Android Keystore, API 23 or later.");
+            getDataKey();
+        }
+        preferences().edit().putBoolean(KEY_ENABLED, encrypt).apply();
+        enabled = encrypt;
+    }
+
+    /**
+     * @return whether the bodies of the messages written from now on are encrypted.
+     */
+    public static boolean isEnabled(){
+        Boolean current = enabled;
+        if(current == null){
+            //nothing was written through the shared database yet
+            if(context == null) return false;
+            synchronized (SmsCipher.class){
+                if(enabled == null) enabled = preferences().getBoolean(KEY_ENABLED, false);
+                current = enabled;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Method setting the data key directly, bypassing the Keystore, and enabling encryption for
+     * this process only. Meant for tests and benchmarks, which have no Keystore.
+     * @param key the data key, null to forget it and disable encryption.
+     */
+    static synchronized void setDataKey(SecretKey key){
+        dataKey = key;
+        enabled = key != null;
+    }
+
+    /**
+     * Method sealing the body of a message, if encryption is enabled.
+     * @param sms the message to be written.
+     * @return a copy of sms holding the sealed body, sms itself if encryption is disabled.
+     */
+    static SmsEntity seal(SmsEntity sms){
+        if(!isEnabled() || sms.body == null) return sms;
+        SmsEntity sealed = new SmsEntity(sms.address, encrypt(sms.address, sms.body), sms.timestamp);
+        sealed.id = sms.id;
+        sealed.subscriptionId = sms.subscriptionId;
+        sealed.sentTimestamp = sms.sentTimestamp;
+        return sealed;
+    }
+
+    /**
+     * Method sealing the bodies of several messages, see {@link #seal(SmsEntity)}.
+     * @return messages itself if encryption is disabled.
+     */
+    static List<SmsEntity> seal(List<SmsEntity> messages){
+        if(!isEnabled()) return messages;
+        List<SmsEntity> sealed = new ArrayList<>(messages.size());
+        for(SmsEntity sms : messages) sealed.add(seal(sms));
+        return sealed;
+    }
+
+    /**
+     * Method sealing a single body, for messages held outside of the database on their way to it,
+     * e.g. in WorkManager's input data.
+     * @param context any Context.
+     * @param address the sender's address, the body is bound to.
+     * @param body the plaintext body.
+     * @return the sealed body, body itself if encryption is disabled.
+     */
+    public static String sealBody(Context context, String address, String body){
+        attach(context);
+        if(!isEnabled() || body == null) return body;
+        return encrypt(address, body);
+    }
+
+    /**
+     * Method opening a body sealed by {@link #sealBody}.
+     * @param context any Context.
+     * @param address the sender's address, the body is bound to.
+     * @param body the sealed body, or a plaintext one which is returned as it is.
+     * @return the plaintext body.
+     * @throws GeneralSecurityException if the body can't be opened, AEADBadTagException if it was
+     * not sealed with the current data key.
+     * @throws IllegalArgumentException if the body is malformed.
+     * @throws IllegalStateException if the data key can't be reached right now.
+     */
+    public static String openBody(Context context, String address, String body) throws GeneralSecurityException{
+        attach(context);
+        if(body == null || !body.startsWith(ENCRYPTED_PREFIX)) return body;
+        return decrypt(address, body);
+    }
+
+    /**
+     * Method opening the sealed bodies of messages read from the database, in place. Messages which
+     * can't be opened, i.e. whose envelope is malformed or fails authentication, e.g. because the data
+     * key was lost along with the app's data, are dropped.
+     * @param messages the messages, in order.
+     * @return the opened messages, in order, messages itself if none was dropped.
+     * @throws IllegalStateException if the data key can't be reached right now, so that the calling
+     * transaction is rolled back and the messages are kept.
+     */
+    static SmsEntity[] open(SmsEntity[] messages){
+        int dropped = 0;
+        for(int i = 0; i < messages.length; i++){
+            String body = messages[i].body;
+            if(body == null || !body.startsWith(ENCRYPTED_PREFIX)) continue;
+            try{
+                messages[i].body = decrypt(messages[i].address, body);
+            }
+            catch(AEADBadTagException e){
+                drop(messages, i, e);
+                dropped++;
+            }
+            catch(IllegalArgumentException e){
+                //malformed Base64 or truncated envelope
+                drop(messages, i, e);
+                dropped++;
+            }
+            catch(GeneralSecurityException e){
+                throw new IllegalStateException("Decryption failed", e);
+            }
+        }
+        if(dropped == 0) return messages;
+        SmsEntity[] opened = new SmsEntity[messages.length - dropped];
+        int j = 0;
+        for(SmsEntity sms : messages) if(sms != null) opened[j++] = sms;
+        return opened;
+    }
+
+    private static void drop(SmsEntity[] messages, int i, Exception e){
+        //the body is never logged
+        Log.e("SmsCipher", "Dropping message " + messages[i].id + ", it can't be decrypted", e);
+        messages[i] = null;
+    }
+
+    private static String encrypt(String address, String body){
+        try{
+            byte[] iv = new byte[IV_BYTES];
+            random.nextBytes(iv);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, getDataKey(), new GCMParameterSpec(TAG_BITS, iv));
+            if(address != null) cipher.updateAAD(address.getBytes(UTF_8));
+            byte[] plain = body.getBytes(UTF_8);
+            byte[] sealed = new byte[IV_BYTES + cipher.getOutputSize(plain.length)];
+            System.arraycopy(iv, 0, sealed, 0, IV_BYTES);
+            cipher.doFinal(plain, 0, plain.length, sealed, IV_BYTES);
+            return ENCRYPTED_PREFIX + Base64.encodeToString(sealed, Base64.NO_WRAP);
+        }
+        catch(GeneralSecurityException e){
+            throw new IllegalStateException("Encryption failed", e);
+        }
+    }
+
+    private static String decrypt(String address, String body) throws GeneralSecurityException{
+        byte[] sealed = Base64.decode(body.substring(ENCRYPTED_PREFIX.length()), Base64.NO_WRAP);
+        if(sealed.length < IV_BYTES + TAG_BITS / 8) throw new IllegalArgumentException("Truncated body");
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, getDataKey(), new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+        if(address != null) cipher.updateAAD(address.getBytes(UTF_8));
+        return new String(cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES), UTF_8);
+    }
+
+    /**
+     * Method returning the data key, unwrapping it, or creating it, on first use.
+     * @throws IllegalStateException if the key can't be reached.
+     */
+    private static SecretKey getDataKey(){
+        SecretKey key = dataKey;
+        if(key == null){
+            synchronized (SmsCipher.class){
+                key = dataKey;
+                if(key == null){
+                    if(context == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+                        throw new IllegalStateException("No data key available.");
+                    try{
+                        key = loadDataKey();
+                    }
+                    catch(GeneralSecurityException e){
+                        throw new IllegalStateException("Keystore unavailable", e);
+                    }
+                    catch(IOException e){
+                        throw new IllegalStateException("Keystore unavailable", e);
+                    }
+                    dataKey = key;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Method unwrapping the stored data key with the Keystore key, creating and storing both if missing.
+     */
+    @RequiresApi(Build.VERSION_CODES.M)
+    private static SecretKey loadDataKey() throws GeneralSecurityException, IOException{
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        SharedPreferences preferences = preferences();
+        String wrapped = preferences.getString(KEY_WRAPPED, null);
+        if(wrapped != null && keyStore.containsAlias(KEYSTORE_ALIAS)){
+            SecretKey wrappingKey = (SecretKey)keyStore.getKey(KEYSTORE_ALIAS, null);
+            byte[] sealed = Base64.decode(wrapped, Base64.NO_WRAP);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+            return new SecretKeySpec(cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES), "AES");
+        }
+        //first use, or the Keystore key is gone: rows sealed with an older key can't be opened anymore
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        SecretKey wrappingKey = generator.generateKey();
+        byte[] raw = new byte[DATA_KEY_BYTES];
+        random.nextBytes(raw);
+        //Keystore keys choose their own IV
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        byte[] iv = cipher.getIV();
+        byte[] ciphertext = cipher.doFinal(raw);
+        byte[] sealed = new byte[iv.length + ciphertext.length];
+        System.arraycopy(iv, 0, sealed, 0, iv.length);
+        System.arraycopy(ciphertext, 0, sealed, iv.length, ciphertext.length);
+        preferences.edit().putString(KEY_WRAPPED, Base64.encodeToString(sealed, Base64.NO_WRAP)).commit();
+        return new SecretKeySpec(raw, "AES");
+    }
+
+    private static SharedPreferences preferences(){
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -3,20 +3,33 @@ package com.dezen.riccardo.smshandler.database;
 import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
-import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 import androidx.room.Update;
 
+import java.util.List;
+
 @Dao
 public interface SmsDao{
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    @Insert
     public void insert(SmsEntity... entities);
+    @Insert
+    public void insert(List<SmsEntity> entities);
+    @Insert
+    public long insertSms(SmsEntity entity);
     @Update
     public void updateSms(SmsEntity... entities);
     @Delete
     public void deleteSms(SmsEntity... entities);
     @Query("SELECT * FROM smsentity")
     public SmsEntity[] loadAllSms();
+    @Query("SELECT * FROM smsentity ORDER BY id LIMIT :limit")
+    public SmsEntity[] loadSmsPage(int limit);
+    @Query("DELETE FROM smsentity WHERE id <= :lastId")
+    public int deleteSmsUpTo(long lastId);
+    @Query("SELECT * FROM smsentity WHERE id IN (:ids) ORDER BY id")
+    public SmsEntity[] loadSmsByIds(List<Long> ids);
+    @Query("DELETE FROM smsentity WHERE id IN (:ids)")
+    public int deleteSmsByIds(List<Long> ids);
     @Query("SELECT COUNT(id) FROM smsentity")
     public int getCount();
 }
@@ -1,9 +1,296 @@
 package com.dezen.riccardo.smshandler.database;
 
+import android.content.Context;
+
 import androidx.room.Database;
+import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.dezen.riccardo.smshandler.SmsHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
-@Database(entities = {SmsEntity.class}, version = 1)
+@Database(entities = {SmsEntity.class, OutboxEntity.class, SyncStateEntity.class, SeenMessageEntity.class,
+        MessageLogEntity.class, MessageLogFtsEntity.class, SpilledEventEntity.class}, version = 10)
 public abstract class SmsDatabase extends RoomDatabase {
+    //Process-wide instance, built lazily on first access.
+    private static volatile SmsDatabase instance;
+
+    /**
+     * Version 2 turns the primary key of SmsEntity into an autoincrement key and adds an indexed
+     * arrival timestamp. SQLite can't alter a primary key, so the table is rebuilt. Existing rows keep
+     * their ids and get a timestamp of 0, since their arrival time is unknown.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `SmsEntity_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`address` TEXT, `body` TEXT, `timestamp` INTEGER NOT NULL)");
+            database.execSQL("INSERT INTO `SmsEntity_new` (`id`, `address`, `body`, `timestamp`) "
+                    + "SELECT `id`, `address`, `body`, 0 FROM `SmsEntity`");
+            database.execSQL("DROP TABLE `SmsEntity`");
+            database.execSQL("ALTER TABLE `SmsEntity_new` RENAME TO `SmsEntity`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_SmsEntity_timestamp` ON `SmsEntity` (`timestamp`)");
+        }
+    };
+
+    /**
+     * Version 3 adds the outbox table, holding messages waiting to be sent.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `outbox` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`destination` TEXT, `body` TEXT, `state` INTEGER NOT NULL, `created_at` INTEGER NOT NULL)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_outbox_state` ON `outbox` (`state`)");
+        }
+    };
+
+    /**
+     * Version 4 adds retry bookkeeping to the outbox.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `outbox` ADD COLUMN `attempts` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `outbox` ADD COLUMN `next_attempt_at` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    /**
+     * Version 5 adds the sync_state table, holding the high-water marks of the inbox sync.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sync_state` (`key` TEXT NOT NULL, "
+                    + "`last_id` INTEGER NOT NULL, `last_date` INTEGER NOT NULL, PRIMARY KEY(`key`))");
+        }
+    };
+
+    /**
+     * Version 6 adds the port of outbox messages to be sent as data sms, 0 for text messages.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `outbox` ADD COLUMN `data_port` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    /**
+     * Version 7 adds the seen_message table, remembering the fingerprints of recent incoming messages.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `seen_message` (`fingerprint` INTEGER NOT NULL, "
+                    + "`seen_at` INTEGER NOT NULL, PRIMARY KEY(`fingerprint`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_seen_message_seen_at` ON `seen_message` (`seen_at`)");
+        }
+    };
+
+    /**
+     * Version 8 adds the subscription incoming messages were received on.
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `SmsEntity` ADD COLUMN `subscription_id` INTEGER NOT NULL DEFAULT -1");
+        }
+    };
+
+    /**
+     * Version 9 adds the message log and its full-text index, kept in sync by the same triggers Room
+     * creates for new databases.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `message_log` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`address` TEXT, `body` TEXT, `timestamp` INTEGER NOT NULL, `subscription_id` INTEGER NOT NULL)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_message_log_address_timestamp` ON `message_log` (`address`, `timestamp`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_message_log_timestamp` ON `message_log` (`timestamp`)");
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `message_log_fts` USING FTS4(`body` TEXT, content=`message_log`)");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_message_log_fts_BEFORE_UPDATE BEFORE UPDATE ON `message_log` "
+                    + "BEGIN DELETE FROM `message_log_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_message_log_fts_BEFORE_DELETE BEFORE DELETE ON `message_log` "
+                    + "BEGIN DELETE FROM `message_log_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_message_log_fts_AFTER_UPDATE AFTER UPDATE ON `message_log` "
+                    + "BEGIN INSERT INTO `message_log_fts`(`docid`, `body`) VALUES (NEW.`rowid`, NEW.`body`); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_message_log_fts_AFTER_INSERT AFTER INSERT ON `message_log` "
+                    + "BEGIN INSERT INTO `message_log_fts`(`docid`, `body`) VALUES (NEW.`rowid`, NEW.`body`); END");
+        }
+    };
+
+    /**
+     * Version 10 adds the spilled_event table, holding the messages spilled by SmsEventPublisher
+     * apart from the unread ones.
+     */
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `spilled_event` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`address` TEXT, `body` TEXT, `timestamp` INTEGER NOT NULL, `subscription_id` INTEGER NOT NULL)");
+        }
+    };
+
     public abstract SmsDao access();
-}
\ No newline at end of file
+    public abstract OutboxDao outbox();
+    public abstract SyncStateDao syncState();
+    public abstract SeenMessageDao seenMessages();
+    public abstract MessageLogDao messageLog();
+    public abstract SpilledEventDao spilledEvents();
+
+    /**
+     * Method writing incoming messages, their bodies sealed by SmsCipher if encryption is enabled.
+     * Messages must be written through this method or {@link #insertSms(SmsEntity)} rather than
+     * through SmsDao, so that they are read back correctly. The given messages are not modified.
+     * @param messages the messages to be written.
+     */
+    public void insertSms(List<SmsEntity> messages){
+        access().insert(SmsCipher.seal(messages));
+    }
+
+    /**
+     * Method writing an incoming message, see {@link #insertSms(List)}.
+     * @param sms the message to be written.
+     * @return the id assigned to the message.
+     */
+    public long insertSms(SmsEntity sms){
+        return access().insertSms(SmsCipher.seal(sms));
+    }
+
+    /**
+     * Method reading and deleting the oldest messages in the database within a single transaction.
+     * Ids are strictly increasing, so the whole page is deleted with a single range delete.
+     * @param pageSize the maximum number of messages to be taken.
+     * @return the oldest messages in the database, in order of arrival, at most pageSize, their
+     * bodies opened. Messages which could not be decrypted are taken but left out, see
+     * {@link #takeSmsPage(int, List)}. An empty array if the database holds no message.
+     */
+    public SmsEntity[] takeSmsPage(int pageSize){
+        List<SmsEntity> page = new ArrayList<>(pageSize);
+        takeSmsPage(pageSize, page);
+        return page.toArray(new SmsEntity[0]);
+    }
+
+    /**
+     * Method reading and deleting the oldest messages in the database within a single transaction.
+     * Bodies are opened before the messages are deleted: if the data key can't be reached the
+     * transaction is rolled back and the messages are kept.
+     * @param pageSize the maximum number of messages to be taken.
+     * @param into the list the opened messages are added to, in order of arrival. Messages which
+     *             could not be decrypted are taken but not added.
+     * @return the number of messages taken from the database: fewer than pageSize only if the
+     * database holds no more messages.
+     * @throws IllegalStateException if the data key can't be reached.
+     */
+    public int takeSmsPage(final int pageSize, final List<SmsEntity> into){
+        return runInTransaction(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                SmsEntity[] page = access().loadSmsPage(pageSize);
+                if(page.length == 0) return 0;
+                SmsEntity[] opened = SmsCipher.open(page.clone());
+                access().deleteSmsUpTo(page[page.length - 1].id);
+                Collections.addAll(into, opened);
+                return page.length;
+            }
+        });
+    }
+
+    /**
+     * Method reading and deleting the given messages in a single transaction, so that each of them
+     * is taken exactly once even if the unread messages are being drained concurrently.
+     * @param ids the ids of the messages.
+     * @return the messages still in the database, in order of arrival, without those which could
+     * not be decrypted.
+     * @throws IllegalStateException if the data key can't be reached, in which case nothing is taken.
+     */
+    public SmsEntity[] takeSmsByIds(final List<Long> ids){
+        return runInTransaction(new Callable<SmsEntity[]>() {
+            @Override
+            public SmsEntity[] call() {
+                SmsEntity[] messages = SmsCipher.open(access().loadSmsByIds(ids));
+                access().deleteSmsByIds(ids);
+                return messages;
+            }
+        });
+    }
+
+    /**
+     * Method writing a message spilled by SmsEventPublisher, its body sealed like those of the
+     * unread messages. Spilled messages are never returned by the methods taking unread ones.
+     * @param sms the message to be written.
+     * @return the id assigned to the spilled message.
+     */
+    public long insertSpilled(SmsEntity sms){
+        SmsEntity sealed = SmsCipher.seal(sms);
+        return spilledEvents().insert(new SpilledEventEntity(sealed.address, sealed.body, sealed.timestamp, sealed.subscriptionId));
+    }
+
+    /**
+     * Method reading spilled messages without deleting them, for readers sharing the same rows.
+     * @param ids the ids of the spilled messages.
+     * @return the messages still in the database, in order of arrival, their id being the one of
+     * the spilled message, without those which could not be decrypted.
+     * @throws IllegalStateException if the data key can't be reached.
+     */
+    public SmsEntity[] loadSpilled(List<Long> ids){
+        SpilledEventEntity[] events = spilledEvents().loadByIds(ids);
+        SmsEntity[] messages = new SmsEntity[events.length];
+        for(int i = 0; i < events.length; i++){
+            SpilledEventEntity event = events[i];
+            messages[i] = new SmsEntity(event.address, event.body, event.timestamp);
+            messages[i].id = event.id;
+            messages[i].subscriptionId = event.subscriptionId;
+        }
+        return SmsCipher.open(messages);
+    }
+
+    /**
+     * Method returning the process-wide instance of the database, building it on first access.
+     * Every component of the library should go through this method instead of building its own
+     * instance, so that a single connection pool and invalidation tracker are shared.
+     * @param context any Context, only its application Context is retained.
+     * @return the shared instance of SmsDatabase.
+     */
+    public static SmsDatabase getInstance(Context context){
+        SmsDatabase db = instance;
+        if(db == null){
+            synchronized (SmsDatabase.class){
+                db = instance;
+                if(db == null){
+                    db = Room.databaseBuilder(context.getApplicationContext(), SmsDatabase.class, SmsHandler.SMS_HANDLER_LOCAL_DATABASE)
+                            .enableMultiInstanceInvalidation()
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7,
+                                    MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10)
+                            .build();
+                    SmsCipher.attach(context);
+                    instance = db;
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Method closing the process-wide instance, if it was ever built. A following call to
+     * getInstance will build a new one. Should only be called when no pending operation
+     * is using the database, e.g. when the application is shutting down or in tests.
+     */
+    public static void closeInstance(){
+        synchronized (SmsDatabase.class){
+            if(instance != null){
+                instance.close();
+                instance = null;
+            }
+        }
+    }
+}
@@ -2,19 +2,35 @@ package com.dezen.riccardo.smshandler.database;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity
+@Entity(indices = {@Index(value = "timestamp")})
 public class SmsEntity{
-    public SmsEntity(int id, String address, String body) {
-        this.id = id;
+    /**
+     * @param address the originating address of the message.
+     * @param body the body of the message.
+     * @param timestamp the arrival time of the message, in milliseconds since epoch.
+     */
+    public SmsEntity(String address, String body, long timestamp) {
         this.address = address;
         this.body = body;
+        this.timestamp = timestamp;
     }
-    @PrimaryKey
-    public int id;
+    //Assigned by the database on insertion, strictly increasing in order of insertion.
+    @PrimaryKey(autoGenerate = true)
+    public long id;
     @ColumnInfo(name = "address")
     public String address;
     @ColumnInfo(name = "body")
     public String body;
+    @ColumnInfo(name = "timestamp")
+    public long timestamp;
+    //Subscription the message was received on, SubscriptionRouter.NO_SUBSCRIPTION if unknown.
+    @ColumnInfo(name = "subscription_id", defaultValue = "-1")
+    public int subscriptionId = -1;
+    //Service center timestamp of the message, only known before it's persisted.
+    @Ignore
+    public long sentTimestamp;
 }
@@ -0,0 +1,21 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface SpilledEventDao{
+    @Insert
+    public long insert(SpilledEventEntity event);
+    @Query("SELECT * FROM spilled_event WHERE id IN (:ids) ORDER BY id")
+    public SpilledEventEntity[] loadByIds(List<Long> ids);
+    @Query("DELETE FROM spilled_event WHERE id IN (:ids)")
+    public int deleteByIds(List<Long> ids);
+    @Query("DELETE FROM spilled_event")
+    public int deleteAll();
+    @Query("SELECT COUNT(id) FROM spilled_event")
+    public int getCount();
+}
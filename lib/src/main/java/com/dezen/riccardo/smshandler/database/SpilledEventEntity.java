@@ -0,0 +1,37 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * A received message spilled by a SmsEventPublisher whose subscribers fell behind. Unlike SmsEntity
+ * the message was already dispatched to the listeners, so it's kept apart from the unread messages
+ * and never drained.
+ */
+@Entity(tableName = "spilled_event")
+public class SpilledEventEntity{
+    /**
+     * @param address the originating address of the message.
+     * @param body the body of the message.
+     * @param timestamp the arrival time of the message, in milliseconds since epoch.
+     * @param subscriptionId the subscription the message was received on.
+     */
+    public SpilledEventEntity(String address, String body, long timestamp, int subscriptionId) {
+        this.address = address;
+        this.body = body;
+        this.timestamp = timestamp;
+        this.subscriptionId = subscriptionId;
+    }
+    //Assigned by the database on insertion, strictly increasing in order of insertion.
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+    @ColumnInfo(name = "address")
+    public String address;
+    @ColumnInfo(name = "body")
+    public String body;
+    @ColumnInfo(name = "timestamp")
+    public long timestamp;
+    @ColumnInfo(name = "subscription_id")
+    public int subscriptionId;
+}
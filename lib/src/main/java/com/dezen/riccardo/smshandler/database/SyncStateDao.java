@@ -0,0 +1,14 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface SyncStateDao{
+    @Query("SELECT * FROM sync_state WHERE `key` = :key")
+    public SyncStateEntity get(String key);
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public void put(SyncStateEntity state);
+}
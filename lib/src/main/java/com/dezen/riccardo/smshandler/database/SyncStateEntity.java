@@ -0,0 +1,27 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+@Entity(tableName = "sync_state")
+public class SyncStateEntity{
+    /**
+     * @param key the name of the synchronized source.
+     * @param lastId the greatest id processed so far.
+     * @param lastDate the date of the last message processed, in milliseconds since epoch.
+     */
+    public SyncStateEntity(@NonNull String key, long lastId, long lastDate) {
+        this.key = key;
+        this.lastId = lastId;
+        this.lastDate = lastDate;
+    }
+    @PrimaryKey
+    @NonNull
+    public String key;
+    @ColumnInfo(name = "last_id")
+    public long lastId;
+    @ColumnInfo(name = "last_date")
+    public long lastDate;
+}
@@ -0,0 +1,91 @@
+package com.dezen.riccardo.smshandler;
+
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a handed off message is settled exactly once, either consumed or persisted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class InboundDeliveryTest {
+    private final List<String> settled = new ArrayList<>();
+
+    private InboundDelivery newDelivery(){
+        return new InboundDelivery(new SmsEntity("A", SmsHandler.APP_KEY + "a", 0), new InboundDelivery.Callback() {
+            @Override
+            public void onSettled(InboundDelivery delivery, boolean consumed, boolean mustPersist) {
+                settled.add(consumed ? "consumed" : mustPersist ? "persist" : "stored");
+            }
+        });
+    }
+
+    @Test
+    public void noHandler_mustBePersisted(){
+        InboundDelivery delivery = newDelivery();
+        delivery.release(false);
+        assertEquals(InboundDelivery.PERSISTED, delivery.getState());
+        assertEquals(1, settled.size());
+        assertEquals("persist", settled.get(0));
+    }
+
+    @Test
+    public void consumedByOneOfTwoHandlers_isConsumed(){
+        InboundDelivery delivery = newDelivery();
+        delivery.hold();
+        delivery.hold();
+        delivery.release(false);
+        assertTrue(delivery.begin());
+        delivery.release(false);
+        assertTrue(delivery.begin());
+        delivery.release(true);
+        assertEquals(InboundDelivery.CONSUMED, delivery.getState());
+        assertEquals(1, settled.size());
+        assertEquals("consumed", settled.get(0));
+    }
+
+    @Test
+    public void persistedBeforeDelivery_isNotDelivered(){
+        InboundDelivery delivery = newDelivery();
+        delivery.hold();
+        delivery.release(false);
+        assertTrue(delivery.persistIfPending());
+        assertFalse(delivery.begin());
+        delivery.release(false);
+        assertTrue(settled.isEmpty());
+    }
+
+    @Test
+    public void claimedDelivery_cannotBePersisted(){
+        InboundDelivery delivery = newDelivery();
+        delivery.hold();
+        delivery.release(false);
+        assertTrue(delivery.begin());
+        assertFalse(delivery.persistIfPending());
+        delivery.release(true);
+        assertEquals(1, settled.size());
+        assertEquals("consumed", settled.get(0));
+    }
+
+    @Test
+    public void spilledByHandler_isNotPersistedAgain(){
+        InboundDelivery delivery = newDelivery();
+        delivery.hold();
+        delivery.release(false);
+        delivery.releaseStored();
+        assertFalse(delivery.persistIfPending());
+        assertEquals(1, settled.size());
+        assertEquals("stored", settled.get(0));
+    }
+}
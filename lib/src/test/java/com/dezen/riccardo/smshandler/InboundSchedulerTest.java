@@ -0,0 +1,132 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the delivery order of InboundScheduler: urgent messages first, senders served in
+ * round-robin, each sender's messages in order. No Context is set, so nothing is spilled, except
+ * by the test checking that spilled messages nobody consumes are written back.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class InboundSchedulerTest {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final List<String> delivered = new ArrayList<>();
+
+    private final InboundScheduler scheduler = new InboundScheduler(new InboundScheduler.Sink() {
+        @Override
+        public boolean deliver(String from, String message, int subscriptionId) {
+            delivered.add(from + ":" + message.substring(SmsHandler.APP_KEY.length()));
+            return true;
+        }
+    }, new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    });
+
+    private void runAll(){
+        while(!tasks.isEmpty()) tasks.poll().run();
+    }
+
+    @After
+    public void tearDown(){
+        SmsDatabase.closeInstance();
+        ApplicationProvider.getApplicationContext().deleteDatabase(SmsHandler.SMS_HANDLER_LOCAL_DATABASE);
+    }
+
+    @Test
+    public void noisySender_doesNotDelayOthers(){
+        for(int i = 0; i < 4; i++) scheduler.submit("A", SmsHandler.APP_KEY + "a" + i, SubscriptionRouter.NO_SUBSCRIPTION);
+        scheduler.submit("B", SmsHandler.APP_KEY + "b0", SubscriptionRouter.NO_SUBSCRIPTION);
+        scheduler.submit("C", SmsHandler.APP_KEY + "c0", SubscriptionRouter.NO_SUBSCRIPTION);
+        runAll();
+        assertEquals(Arrays.asList("A:a0", "B:b0", "C:c0", "A:a1", "A:a2", "A:a3"), delivered);
+    }
+
+    @Test
+    public void urgentMessages_areServedFirst_butNotExclusively(){
+        scheduler.submit("A", SmsHandler.APP_KEY + "a0", SubscriptionRouter.NO_SUBSCRIPTION);
+        scheduler.submit("A", SmsHandler.APP_KEY + "a1", SubscriptionRouter.NO_SUBSCRIPTION);
+        for(int i = 0; i < InboundScheduler.HIGH_PRIORITY_WEIGHT + 1; i++)
+            scheduler.submit("B", SmsHandler.APP_KEY + SmsHandler.URGENT_MARKER + "u" + i, SubscriptionRouter.NO_SUBSCRIPTION);
+        runAll();
+        assertEquals(Arrays.asList("B:!u0", "B:!u1", "B:!u2", "B:!u3", "A:a0", "B:!u4", "A:a1"), delivered);
+    }
+
+    @Test
+    public void reloadedMessage_notConsumed_isWrittenBack() throws Exception{
+        final Context context = ApplicationProvider.getApplicationContext();
+        //filled by the spilling thread too
+        final ConcurrentLinkedQueue<Runnable> queued = new ConcurrentLinkedQueue<>();
+        final List<String> offered = new ArrayList<>();
+        InboundScheduler spilling = new InboundScheduler(new InboundScheduler.Sink() {
+            @Override
+            public boolean deliver(String from, String message, int subscriptionId) {
+                offered.add(message);
+                //the listeners are gone
+                return false;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        spilling.setContext(context);
+        for(int i = 0; i <= InboundScheduler.MAX_HELD_PER_SENDER; i++)
+            spilling.submit("A", SmsHandler.APP_KEY + "a" + i, SubscriptionRouter.NO_SUBSCRIPTION);
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try{
+            Callable<Integer> count = new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return SmsDatabase.getInstance(context).access().getCount();
+                }
+            };
+            //delivers the messages held in memory, then the spilled one once read back
+            long deadline = System.currentTimeMillis() + 5000;
+            while(offered.size() <= InboundScheduler.MAX_HELD_PER_SENDER && System.currentTimeMillis() < deadline){
+                Runnable task = queued.poll();
+                if(task != null) task.run();
+                else Thread.sleep(10);
+            }
+            assertEquals(SmsHandler.APP_KEY + "a" + InboundScheduler.MAX_HELD_PER_SENDER, offered.get(offered.size() - 1));
+            //taken from the database when read back, then written back
+            deadline = System.currentTimeMillis() + 5000;
+            int rows;
+            do{
+                rows = worker.submit(count).get();
+                if(rows == 1) break;
+                Thread.sleep(10);
+            }while(System.currentTimeMillis() < deadline);
+            assertEquals(1, rows);
+        }
+        finally{
+            worker.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.dezen.riccardo.smshandler;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that a message is let through once, whether the duplicate comes from the same process or
+ * from a later one, and that distinct messages with the same body are not mistaken for duplicates.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MessageDeduplicatorTest {
+    private SmsDatabase db;
+
+    @Before
+    public void setUp(){
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), SmsDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+    }
+
+    @After
+    public void tearDown(){
+        db.close();
+    }
+
+    private static SmsEntity message(String address, long sentTimestamp, String body){
+        SmsEntity sms = new SmsEntity(address, body, System.currentTimeMillis());
+        sms.sentTimestamp = sentTimestamp;
+        return sms;
+    }
+
+    @Test
+    public void recentDuplicate_isDropped(){
+        SmsEntity first = message("+391111111111", 1000, SmsHandler.APP_KEY + "recent");
+        SmsEntity retransmitted = message("+391111111111", 1000, SmsHandler.APP_KEY + "recent");
+        assertEquals(1, MessageDeduplicator.filterRecent(Collections.singletonList(first)).size());
+        assertEquals(0, MessageDeduplicator.filterRecent(Collections.singletonList(retransmitted)).size());
+    }
+
+    @Test
+    public void persistedDuplicate_isDropped(){
+        //a new fingerprint each run, since the cache in memory outlives the test
+        SmsEntity sms = message("+392222222222", System.nanoTime(), SmsHandler.APP_KEY + "persisted");
+        List<SmsEntity> batch = Collections.singletonList(sms);
+        assertEquals(1, MessageDeduplicator.filterPersisted(db, batch).size());
+        assertEquals(0, MessageDeduplicator.filterPersisted(db, batch).size());
+    }
+
+    @Test
+    public void sameBodyAtDifferentTimes_isKept(){
+        List<SmsEntity> batch = Arrays.asList(
+                message("+393333333333", 1000, SmsHandler.APP_KEY + "ping"),
+                message("+393333333333", 2000, SmsHandler.APP_KEY + "ping"),
+                message("+394444444444", 1000, SmsHandler.APP_KEY + "ping"));
+        assertEquals(3, MessageDeduplicator.filterPersisted(db, batch).size());
+        assertNotEquals(MessageDeduplicator.fingerprint(batch.get(0)), MessageDeduplicator.fingerprint(batch.get(1)));
+    }
+}
@@ -0,0 +1,101 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.MessageLogDao;
+import com.dezen.riccardo.smshandler.database.MessageLogEntity;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the keyset pagination, full-text search and pruning of the message log on an in-memory
+ * database. Queries run on the test thread, which Room allows for in-memory databases built here.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MessageLogTest {
+    private static final String A = "+391111111111";
+    private static final String B = "+392222222222";
+
+    private SmsDatabase db;
+    private MessageLogDao log;
+
+    @Before
+    public void setUp(){
+        Context context = ApplicationProvider.getApplicationContext();
+        db = Room.inMemoryDatabaseBuilder(context, SmsDatabase.class).allowMainThreadQueries().build();
+        log = db.messageLog();
+        List<MessageLogEntity> rows = new ArrayList<>();
+        //two messages per timestamp, so that pages break between rows with the same timestamp
+        for(int i = 0; i < 10; i++)
+            rows.add(new MessageLogEntity(i % 2 == 0 ? A : B, SmsHandler.APP_KEY + " reading " + i + (i == 7 ? " alarm" : ""),
+                    1000 + i / 2, SubscriptionRouter.NO_SUBSCRIPTION));
+        log.insert(rows);
+    }
+
+    @After
+    public void tearDown(){
+        db.close();
+    }
+
+    @Test
+    public void bySender_pagesNewestFirstWithoutGaps(){
+        List<String> bodies = new ArrayList<>();
+        MessageLogEntity[] page = log.loadBySender(A, Long.MAX_VALUE, Long.MAX_VALUE, 2);
+        while(page.length > 0){
+            for(MessageLogEntity row : page) bodies.add(row.body.substring(SmsHandler.APP_KEY.length()));
+            MessageLogEntity last = page[page.length - 1];
+            page = log.loadBySender(A, last.timestamp, last.id, 2);
+        }
+        assertEquals(5, bodies.size());
+        assertEquals(" reading 8", bodies.get(0));
+        assertEquals(" reading 0", bodies.get(4));
+    }
+
+    @Test
+    public void byTime_pagesAcrossEqualTimestamps(){
+        MessageLogEntity[] first = log.loadByTime(1001, 1003, Long.MAX_VALUE, Long.MAX_VALUE, 3);
+        assertEquals(3, first.length);
+        MessageLogEntity last = first[2];
+        MessageLogEntity[] second = log.loadByTime(1001, 1003, last.timestamp, last.id, 3);
+        assertEquals(1, second.length);
+        assertEquals(1001, second[0].timestamp);
+    }
+
+    @Test
+    public void search_matchesWordsAndPrefixes(){
+        assertEquals(1, log.search(MessageLog.matchQuery("alarm"), Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+        assertEquals(10, log.search(MessageLog.matchQuery("read*"), Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+        assertEquals(0, log.search(MessageLog.matchQuery("read"), Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+    }
+
+    @Test
+    public void matchQuery_quotesEveryWord(){
+        assertEquals("\"alarm\" \"lev*\"", MessageLog.matchQuery("  alarm \"lev*  "));
+        assertEquals("\"ORNOT\"", MessageLog.matchQuery("OR\"NOT"));
+        assertEquals("", MessageLog.matchQuery(" \" "));
+    }
+
+    @Test
+    public void prune_keepsNewestRows(){
+        assertEquals(4, log.deleteBefore(1002));
+        assertEquals(2, log.deleteOldestBeyond(4));
+        assertEquals(4, log.getCount());
+        //deleted rows are gone from the full-text index too
+        assertEquals(4, log.search(MessageLog.matchQuery("read*"), Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+    }
+}
@@ -0,0 +1,270 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+import android.content.Intent;
+import android.provider.Telephony;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.benchmark.BenchmarkReport;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of the receive, persist and drain paths, on a plain JVM. Results are written to
+ * build/reports/benchmarks/ReceivePath.json, see {@link BenchmarkReport}.
+ * Run with ./gradlew :lib:testDebugUnitTest -Pbenchmarks --tests '*BenchmarkTest'
+ * Room refuses main thread queries, so every database benchmark runs on a background thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ReceivePathBenchmarkTest {
+    private static final String SENDER = "+390000000000";
+    private static final int INTENTS = 1000;
+    private static final int BURST = 50;
+    private static final int BURST_MESSAGES = 5000;
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 5000;
+    private static final int SENDERS_PER_PRODUCER = 16;
+
+    private static final BenchmarkReport report = new BenchmarkReport("ReceivePath");
+
+    private Context context;
+    private ExecutorService worker;
+
+    @Before
+    public void setUp(){
+        BenchmarkReport.assumeEnabled();
+        context = ApplicationProvider.getApplicationContext();
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown(){
+        if(worker != null) worker.shutdownNow();
+        SmsDatabase.closeInstance();
+        if(context != null) context.deleteDatabase(SmsHandler.SMS_HANDLER_LOCAL_DATABASE);
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception{
+        report.write();
+    }
+
+    /**
+     * Decoding, reassembly and filtering of SMS_RECEIVED broadcasts, half of them for the library,
+     * a third of them made of two segments. Counts messages.
+     */
+    @Test
+    public void pduFiltering() throws Exception{
+        final Intent[] intents = new Intent[INTENTS];
+        for(int i = 0; i < INTENTS; i++){
+            String body = (i % 2 == 0 ? SmsHandler.APP_KEY : "") + " message number " + i;
+            intents[i] = i % 3 == 0
+                    ? TestPdus.intent(SENDER, i % 60, body, " second segment of " + i)
+                    : TestPdus.intent(SENDER, i % 60, body);
+        }
+        final int[] accepted = new int[1];
+        report.measure("pduFiltering", "intents=" + INTENTS, 3, 10, new BenchmarkReport.Iteration() {
+            @Override
+            public long run() {
+                accepted[0] = 0;
+                long now = System.currentTimeMillis();
+                for(Intent intent : intents){
+                    List<SmsEntity> received = SmsReceiver.reassemble(Telephony.Sms.Intents.getMessagesFromIntent(intent), now);
+                    accepted[0] += SmsReceiver.filter(received).size();
+                }
+                return intents.length;
+            }
+        });
+        assertEquals(INTENTS / 2, accepted[0]);
+    }
+
+    /**
+     * Messages queued by bursts of broadcasts and written by a single commit per burst, as the
+     * receiver's WriteTask does, into an in-memory database. Counts messages.
+     */
+    @Test
+    public void burstIngestion() throws Exception{
+        final SmsDatabase db = Room.inMemoryDatabaseBuilder(context, SmsDatabase.class).build();
+        final AtomicInteger sequence = new AtomicInteger();
+        try{
+            worker.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    report.measure("burstIngestion", "messages=" + BURST_MESSAGES + ",burst=" + BURST, 2, 5, new BenchmarkReport.Iteration() {
+                        @Override
+                        public long run() {
+                            int written = 0;
+                            for(int i = 0; i < BURST_MESSAGES; i += BURST){
+                                //bodies never repeat, so that no message is dropped as a duplicate
+                                for(int j = 0; j < BURST; j++)
+                                    SmsReceiver.enqueueWrite(new SmsEntity(SENDER, SmsHandler.APP_KEY + sequence.getAndIncrement(), System.currentTimeMillis()));
+                                written += SmsReceiver.writePending(db, Collections.<SmsEntity>emptyList());
+                            }
+                            assertEquals(BURST_MESSAGES, written);
+                            return written;
+                        }
+                    });
+                    return null;
+                }
+            }).get();
+        }
+        finally{
+            db.close();
+        }
+    }
+
+    @Test
+    public void drain10k() throws Exception{
+        drain(10000, 2, 5);
+    }
+
+    @Test
+    public void drain100k() throws Exception{
+        drain(100000, 1, 3);
+    }
+
+    /**
+     * Messages drained by drainUnreadMessages, with the default page size, from the shared
+     * database. Counts messages.
+     */
+    private void drain(final int rows, final int warmups, final int iterations) throws Exception{
+        final SmsHandler handler = new SmsHandler();
+        final AtomicInteger received = new AtomicInteger();
+        handler.addListener(new CountingListener(received, null));
+        worker.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final SmsDatabase db = SmsDatabase.getInstance(context);
+                report.measure("drain", "rows=" + rows, warmups, iterations, new BenchmarkReport.Iteration() {
+                    @Override
+                    public void setUp() {
+                        final List<SmsEntity> messages = new ArrayList<>(rows);
+                        for(int i = 0; i < rows; i++)
+                            messages.add(new SmsEntity(SENDER, SmsHandler.APP_KEY + i, i));
+                        db.access().insert(messages);
+                        received.set(0);
+                    }
+
+                    @Override
+                    public long run() {
+                        int drained = handler.drainUnreadMessages(context);
+                        assertEquals(rows, drained);
+                        assertEquals(rows, received.get());
+                        return drained;
+                    }
+                });
+                return null;
+            }
+        }).get();
+    }
+
+    /**
+     * Messages submitted by several threads at once, from many senders, and delivered to a listener
+     * on a single thread while another thread keeps adding and removing listeners. Counts messages
+     * from the first submission to the last delivery.
+     */
+    @Test
+    public void listenerDispatchUnderContention() throws Exception{
+        final int total = PRODUCERS * MESSAGES_PER_PRODUCER;
+        final SmsHandler handler = new SmsHandler();
+        final ExecutorService dispatch = Executors.newSingleThreadExecutor();
+        final ExecutorService threads = Executors.newFixedThreadPool(PRODUCERS + 1);
+        handler.setDispatchExecutor(dispatch);
+        final AtomicInteger received = new AtomicInteger();
+        final CountDownLatch[] done = new CountDownLatch[1];
+        handler.addListener(new CountingListener(received, done));
+        try{
+            report.measure("listenerDispatch", "producers=" + PRODUCERS + ",messages=" + total, 2, 5, new BenchmarkReport.Iteration() {
+                @Override
+                public void setUp() {
+                    received.set(0);
+                    done[0] = new CountDownLatch(total);
+                }
+
+                @Override
+                public long run() throws Exception {
+                    final AtomicBoolean churning = new AtomicBoolean(true);
+                    threads.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            CountingListener idle = new CountingListener(new AtomicInteger(), null);
+                            while(churning.get()){
+                                handler.addListener(idle);
+                                handler.removeListener(idle);
+                            }
+                        }
+                    });
+                    for(int p = 0; p < PRODUCERS; p++){
+                        final int producer = p;
+                        threads.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                for(int i = 0; i < MESSAGES_PER_PRODUCER; i++)
+                                    handler.dispatchReceived(new InboundDelivery(new SmsEntity("+39" + producer + "00" + (i % SENDERS_PER_PRODUCER), SmsHandler.APP_KEY + i, 0), null));
+                            }
+                        });
+                    }
+                    try{
+                        assertTrue(done[0].await(60, TimeUnit.SECONDS));
+                    }
+                    finally{
+                        churning.set(false);
+                    }
+                    assertEquals(total, received.get());
+                    return total;
+                }
+            });
+        }
+        finally{
+            threads.shutdownNow();
+            dispatch.shutdownNow();
+        }
+    }
+
+    private static class CountingListener implements SmsHandler.OnSmsEventListener {
+        private final AtomicInteger received;
+        private final CountDownLatch[] done;
+
+        CountingListener(AtomicInteger received, CountDownLatch[] done){
+            this.received = received;
+            this.done = done;
+        }
+
+        @Override
+        public void onReceive(String from, String message) {
+            received.incrementAndGet();
+            if(done != null) done[0].countDown();
+        }
+
+        @Override
+        public void onSent(int resultCode) { }
+
+        @Override
+        public void onDelivered(int resultCode) { }
+    }
+}
@@ -0,0 +1,50 @@
+package com.dezen.riccardo.smshandler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the recipient normalization and the progress reported by SmsBroadcast.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsBroadcastTest {
+
+    @Test
+    public void normalize_dropsDuplicatesAndInvalid_keepingOrder(){
+        List<String> recipients = SmsBroadcast.normalize(Arrays.asList(
+                "+39 333 1234567", "+393331234567", "not a number", null, "+39-333-7654321"));
+        assertEquals(Arrays.asList("+393331234567", "+393337654321"), recipients);
+    }
+
+    @Test
+    public void progress_isAggregated(){
+        final List<String> progress = new ArrayList<>();
+        SmsBroadcast broadcast = new SmsBroadcast(Arrays.asList("A", "B", "C"), 1, new SmsBroadcast.OnBroadcastProgressListener() {
+            @Override
+            public void onProgress(SmsBroadcast broadcast, String destination, boolean sent) {
+                progress.add(destination + ":" + sent + ":" + broadcast.getPendingCount());
+            }
+        });
+        broadcast.onResult("B", true);
+        broadcast.onResult("A", false);
+        assertFalse(broadcast.isDone());
+        broadcast.onResult("C", true);
+        assertTrue(broadcast.isDone());
+        assertEquals(2, broadcast.getSentCount());
+        assertEquals(1, broadcast.getFailedCount());
+        assertEquals(1, broadcast.getRejectedCount());
+        assertEquals(Arrays.asList("A"), broadcast.getFailedRecipients());
+        assertEquals(Arrays.asList("B:true:2", "A:false:1", "C:true:0"), progress);
+    }
+}
@@ -0,0 +1,266 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks demand, overflow policies and completion of SmsEventPublisher. Subscribers run on the
+ * publishing thread, so that every signal is delivered before the call publishing it returns.
+ * Spilled messages are read back on the spilling thread, so those tests poll for the outcome.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsEventPublisherTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private SmsHandler handler;
+
+    @Before
+    public void setUp(){
+        handler = new SmsHandler();
+    }
+
+    @After
+    public void tearDown(){
+        SmsDatabase.closeInstance();
+        ApplicationProvider.getApplicationContext().deleteDatabase(SmsHandler.SMS_HANDLER_LOCAL_DATABASE);
+    }
+
+    @Test
+    public void subscriber_onlyGetsRequestedEvents(){
+        SmsEventPublisher publisher = publisher(SmsEventPublisher.OVERFLOW_ERROR, 8);
+        RecordingSubscriber subscriber = new RecordingSubscriber(2);
+        publisher.subscribe(subscriber);
+        receive(publisher, "m0", "m1", "m2", "m3", "m4");
+        assertEquals(Arrays.asList("m0", "m1"), subscriber.messages);
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), subscriber.messages);
+    }
+
+    @Test
+    public void dropOldest_keepsNewestEvents(){
+        SmsEventPublisher publisher = publisher(SmsEventPublisher.OVERFLOW_DROP_OLDEST, 2);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+        receive(publisher, "m0", "m1", "m2", "m3");
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("m2", "m3"), subscriber.messages);
+    }
+
+    @Test
+    public void error_failsSubscriberFallingBehind(){
+        SmsEventPublisher publisher = publisher(SmsEventPublisher.OVERFLOW_ERROR, 2);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+        receive(publisher, "m0", "m1", "m2");
+        assertTrue(subscriber.error instanceof IllegalStateException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void subscribers_haveIndependentDemand(){
+        SmsEventPublisher publisher = publisher(SmsEventPublisher.OVERFLOW_DROP_OLDEST, 8);
+        RecordingSubscriber fast = new RecordingSubscriber(Long.MAX_VALUE);
+        RecordingSubscriber slow = new RecordingSubscriber(1);
+        publisher.subscribe(fast);
+        publisher.subscribe(slow);
+        receive(publisher, "m0", "m1", "m2");
+        publisher.onSent(7, 0);
+        assertEquals(4, fast.events.size());
+        assertEquals(SmsEvent.TYPE_SENT, fast.events.get(3).type);
+        assertEquals(7, fast.events.get(3).messageId);
+        assertEquals(Arrays.asList("m0"), slow.messages);
+    }
+
+    @Test
+    public void close_completesAfterBufferedEvents(){
+        SmsEventPublisher publisher = publisher(SmsEventPublisher.OVERFLOW_ERROR, 8);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+        receive(publisher, "m0");
+        publisher.close();
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList("m0"), subscriber.messages);
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void nonPositiveRequest_failsSubscription(){
+        SmsEventPublisher publisher = publisher(SmsEventPublisher.OVERFLOW_ERROR, 8);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void spill_writesOnceForAllSubscribers() throws Exception{
+        final Context context = ApplicationProvider.getApplicationContext();
+        SmsEventPublisher publisher = new SmsEventPublisher(handler, context, SmsEventPublisher.OVERFLOW_SPILL, 1, DIRECT);
+        RecordingSubscriber first = new RecordingSubscriber(0);
+        RecordingSubscriber second = new RecordingSubscriber(0);
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        receive(publisher, "m0", "m1", "m2");
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try{
+            Callable<Integer> count = new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return SmsDatabase.getInstance(context).spilledEvents().getCount();
+                }
+            };
+            //m1 and m2 are spilled for both subscribers, but written once
+            assertEquals(2, awaitCount(worker, count, 2));
+            first.subscription.request(Long.MAX_VALUE);
+            second.subscription.request(Long.MAX_VALUE);
+            awaitMessages(first, 3);
+            awaitMessages(second, 3);
+            assertEquals(Arrays.asList("m0", "m1", "m2"), first.messages);
+            assertEquals(Arrays.asList("m0", "m1", "m2"), second.messages);
+            //deleted once both read them back
+            assertEquals(0, awaitCount(worker, count, 0));
+        }
+        finally{
+            worker.shutdownNow();
+        }
+    }
+
+    @Test
+    public void spill_isNotDrainedAsUnread() throws Exception{
+        final Context context = ApplicationProvider.getApplicationContext();
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        handler.addListener(new SmsHandler.OnSmsEventListener() {
+            @Override
+            public void onReceive(String from, String message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onSent(int resultCode) { }
+
+            @Override
+            public void onDelivered(int resultCode) { }
+        });
+        SmsEventPublisher publisher = new SmsEventPublisher(handler, context, SmsEventPublisher.OVERFLOW_SPILL, 1, DIRECT);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+        receive(publisher, "m0", "m1", "m2");
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try{
+            assertEquals(2, awaitCount(worker, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return SmsDatabase.getInstance(context).spilledEvents().getCount();
+                }
+            }, 2));
+            int drained = worker.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return handler.drainUnreadMessages(context);
+                }
+            }).get();
+            assertEquals(0, drained);
+            assertEquals(Collections.<String>emptyList(), received);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            awaitMessages(subscriber, 3);
+            //give a duplicate the time to show up
+            Thread.sleep(100);
+            assertEquals(Arrays.asList("m0", "m1", "m2"), subscriber.messages);
+            assertEquals(Collections.<String>emptyList(), received);
+        }
+        finally{
+            worker.shutdownNow();
+        }
+    }
+
+    private static int awaitCount(ExecutorService worker, Callable<Integer> count, int expected) throws Exception{
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int value;
+        do{
+            value = worker.submit(count).get();
+            if(value == expected) break;
+            Thread.sleep(10);
+        }while(System.currentTimeMillis() < deadline);
+        return value;
+    }
+
+    private static void awaitMessages(RecordingSubscriber subscriber, int expected) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(subscriber.messages.size() < expected && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+
+    private SmsEventPublisher publisher(int policy, int capacity){
+        return new SmsEventPublisher(handler, null, policy, capacity, DIRECT);
+    }
+
+    private static void receive(SmsEventPublisher publisher, String... messages){
+        for(String message : messages) publisher.onReceive("+390000000000", message, SubscriptionRouter.NO_SUBSCRIPTION);
+    }
+
+    private static class RecordingSubscriber implements SmsEventPublisher.Subscriber {
+        private final long initialRequest;
+        final List<SmsEvent> events = Collections.synchronizedList(new ArrayList<SmsEvent>());
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        SmsEventPublisher.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        RecordingSubscriber(long initialRequest){
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(SmsEventPublisher.Subscription subscription) {
+            this.subscription = subscription;
+            if(initialRequest > 0) subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(SmsEvent event) {
+            events.add(event);
+            if(event.type == SmsEvent.TYPE_RECEIVED) messages.add(event.message);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
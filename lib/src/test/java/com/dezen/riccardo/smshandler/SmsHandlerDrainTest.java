@@ -0,0 +1,131 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that draining the unread messages page by page hands out every message exactly once,
+ * whether or not the last page is full. Room refuses main thread queries, so the drains run on a
+ * background thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsHandlerDrainTest {
+    private static final String SENDER = "+390000000000";
+    private static final int PAGE_SIZE = 7;
+
+    private Context context;
+    private ExecutorService worker;
+    private SmsHandler handler;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp(){
+        context = ApplicationProvider.getApplicationContext();
+        worker = Executors.newSingleThreadExecutor();
+        handler = new SmsHandler();
+        handler.addListener(new SmsHandler.OnSmsEventListener() {
+            @Override
+            public void onReceive(String from, String message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onSent(int resultCode) { }
+
+            @Override
+            public void onDelivered(int resultCode) { }
+        });
+    }
+
+    @After
+    public void tearDown(){
+        worker.shutdownNow();
+        SmsDatabase.closeInstance();
+        context.deleteDatabase(SmsHandler.SMS_HANDLER_LOCAL_DATABASE);
+    }
+
+    @Test
+    public void drain_deliversEveryMessageOnce_acrossPages() throws Exception{
+        //a full last page, then a partial one
+        for(int rows : new int[]{2 * PAGE_SIZE, 2 * PAGE_SIZE + 3}){
+            received.clear();
+            List<String> expected = insert(rows);
+            int drained = worker.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return handler.drainUnreadMessages(context, PAGE_SIZE);
+                }
+            }).get();
+            assertEquals(rows, drained);
+            assertEquals(expected, received);
+            assertEquals(0, count());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void fetch_returnsEveryMessageOnce() throws Exception{
+        List<String> expected = insert(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE + 1);
+        SmsEntity[] messages = worker.submit(new Callable<SmsEntity[]>() {
+            @Override
+            public SmsEntity[] call() {
+                return handler.fetchUnreadMessages(context);
+            }
+        }).get();
+        List<String> bodies = new ArrayList<>();
+        for(SmsEntity sms : messages) bodies.add(sms.body);
+        assertEquals(expected, bodies);
+        assertEquals(expected, received);
+        assertEquals(0, count());
+    }
+
+    /**
+     * @return the bodies of the inserted messages, in order of arrival.
+     */
+    private List<String> insert(final int rows) throws Exception{
+        final List<SmsEntity> messages = new ArrayList<>(rows);
+        List<String> bodies = new ArrayList<>(rows);
+        for(int i = 0; i < rows; i++){
+            String body = SmsHandler.APP_KEY + rows + "-" + i;
+            messages.add(new SmsEntity(SENDER, body, i));
+            bodies.add(body);
+        }
+        worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                SmsDatabase.getInstance(context).insertSms(messages);
+            }
+        }).get();
+        return bodies;
+    }
+
+    private int count() throws Exception{
+        return worker.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return SmsDatabase.getInstance(context).access().getCount();
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,154 @@
+package com.dezen.riccardo.smshandler;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers the listener registry from several threads while another one keeps reading it, checking
+ * that no registration is lost and that readers never see an inconsistent state.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsHandlerRegistryStressTest {
+    private static final int THREADS = 8;
+    private static final int LISTENERS_PER_THREAD = 2000;
+
+    private final List<SmsHandler> handlers = new ArrayList<>();
+
+    @After
+    public void tearDown(){
+        for(SmsHandler handler : handlers) handler.setListeningForIncoming(false);
+    }
+
+    @Test
+    public void concurrentRegistrations_areNotLost() throws Exception{
+        final SmsHandler handler = newListeningHandler();
+        handler.addListener(new NoOpListener());
+        final List<List<NoOpListener>> added = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++){
+            List<NoOpListener> listeners = new ArrayList<>();
+            for(int i = 0; i < LISTENERS_PER_THREAD; i++) listeners.add(new NoOpListener());
+            added.add(listeners);
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    //a listener is attached the whole time, readers must never see none
+                    while(!done.get()){
+                        if(!SmsHandler.shouldHandleIncomingSms()) throw new AssertionError("Stale read");
+                    }
+                }
+                catch(Throwable t){
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        reader.start();
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) {
+                List<NoOpListener> listeners = added.get(thread);
+                for(int i = 0; i < listeners.size(); i++){
+                    handler.addListener(listeners.get(i));
+                    //remove every other listener right away
+                    if(i % 2 == 1 && !handler.removeListener(listeners.get(i)))
+                        throw new AssertionError("Lost registration");
+                }
+            }
+        });
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        for(List<NoOpListener> listeners : added){
+            for(int i = 0; i < listeners.size(); i++)
+                assertTrue(handler.removeListener(listeners.get(i)) == (i % 2 == 0));
+        }
+    }
+
+    @Test
+    public void concurrentHandlers_leaveConsistentState() throws Exception{
+        final List<SmsHandler> threadHandlers = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++) threadHandlers.add(newListeningHandler());
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) {
+                SmsHandler handler = threadHandlers.get(thread);
+                NoOpListener listener = new NoOpListener();
+                for(int i = 0; i < LISTENERS_PER_THREAD; i++){
+                    handler.addListener(listener);
+                    handler.setListeningForIncoming(i % 2 == 0);
+                    handler.removeListener(listener);
+                }
+            }
+        });
+        assertFalse(SmsHandler.shouldHandleIncomingSms());
+        threadHandlers.get(0).addListener(new NoOpListener());
+        threadHandlers.get(0).setListeningForIncoming(true);
+        assertTrue(SmsHandler.shouldHandleIncomingSms());
+    }
+
+    private SmsHandler newListeningHandler(){
+        SmsHandler handler = new SmsHandler();
+        handler.setListeningForIncoming(true);
+        handlers.add(handler);
+        return handler;
+    }
+
+    private interface Task {
+        void run(int thread);
+    }
+
+    /**
+     * Method running the task on THREADS threads, all started at once.
+     */
+    private static void runConcurrently(final Task task) throws Exception{
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++){
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        start.await();
+                        task.run(thread);
+                    }
+                    catch(Throwable t){
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for(Thread worker : threads) worker.join();
+        assertNull(failure.get());
+    }
+
+    private static class NoOpListener implements SmsHandler.OnSmsEventListener {
+        @Override
+        public void onReceive(String from, String message) { }
+        @Override
+        public void onSent(int resultCode) { }
+        @Override
+        public void onDelivered(int resultCode) { }
+    }
+}
@@ -0,0 +1,96 @@
+package com.dezen.riccardo.smshandler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that payloads survive both encodings and that the text form stays in the GSM alphabet
+ * when that takes fewer segments.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsPayloadCodecTest {
+
+    private static SmsPayload samplePayload(){
+        return new SmsPayload()
+                .putString("text", "Ciao, 50% & più € {x}")
+                .putLong("zero", 0)
+                .putLong("time", 1571400000000L)
+                .putLong("neg", -42)
+                .putLong("min", Long.MIN_VALUE)
+                .putLong("max", Long.MAX_VALUE)
+                .putBytes("b0", new byte[0])
+                .putBytes("b1", new byte[]{(byte)0xFF})
+                .putBytes("b2", new byte[]{1, (byte)0x80})
+                .putBytes("b3", new byte[]{0, 127, (byte)0xFE});
+    }
+
+    @Test
+    public void text_roundTrips(){
+        SmsPayload payload = samplePayload();
+        String body = SmsPayloadCodec.encodeText(payload);
+        assertTrue(SmsUtils.hasAppKey(body));
+        assertTrue(SmsPayloadCodec.isPayload(body));
+        assertEquals(payload, SmsPayloadCodec.decodeText(body));
+    }
+
+    @Test
+    public void binary_roundTrips(){
+        SmsPayload payload = samplePayload();
+        assertEquals(payload, SmsPayloadCodec.decodeBinary(SmsPayloadCodec.encodeBinary(payload)));
+    }
+
+    @Test
+    public void singleNonGsmCharacter_isEscaped(){
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 140; i++) sb.append('a');
+        sb.append('í'); //í is not in the GSM alphabet
+        String body = SmsPayloadCodec.encodeText(new SmsPayload().putString("m", sb.toString()));
+        for(int i = 0; i < body.length(); i++) assertTrue(SmsPayloadCodec.septets(body.charAt(i)) > 0);
+        assertEquals(1, SmsPayloadCodec.segments(body));
+    }
+
+    @Test
+    public void mostlyNonGsmText_staysUcs2(){
+        String text = "Привет, как дела? Привет, как дела? Привет, как дела?";
+        String body = SmsPayloadCodec.encodeText(new SmsPayload().putString("m", text));
+        assertTrue(body.contains(text));
+        assertEquals(1, SmsPayloadCodec.segments(body));
+    }
+
+    @Test
+    public void segments_followEncodingLimits(){
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 160; i++) sb.append('a');
+        assertEquals(1, SmsPayloadCodec.segments(sb));
+        sb.append('a');
+        assertEquals(2, SmsPayloadCodec.segments(sb));
+        sb.setLength(70);
+        sb.setCharAt(0, 'í');
+        assertEquals(1, SmsPayloadCodec.segments(sb));
+        sb.append('a');
+        assertEquals(2, SmsPayloadCodec.segments(sb));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedText_isRejected(){
+        SmsPayloadCodec.decodeText(SmsHandler.APP_KEY + SmsPayloadCodec.PAYLOAD_MARKER + "k=%00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidKey_isRejected(){
+        new SmsPayload().putString("a=b", "c");
+    }
+
+    @Test
+    public void plainMessage_isNotPayload(){
+        assertFalse(SmsPayloadCodec.isPayload(SmsHandler.APP_KEY + "hello"));
+        assertFalse(SmsPayloadCodec.isPayload(null));
+    }
+}
@@ -0,0 +1,54 @@
+package com.dezen.riccardo.smshandler;
+
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that messages handed to SmsPersistWorker are split in chunks fitting WorkManager's input
+ * limit, whatever their alphabet. Building the input data throws if a chunk doesn't fit.
+ */
+public class SmsPersistWorkerTest {
+    private static final String SENDER = "+390000000000";
+    //3 bytes per char in modified UTF-8, surrogate pairs are encoded one char at a time
+    private static final String WIDE = "漢😀";
+
+    @Test
+    public void split_nonAsciiBatch_fitsInputLimit(){
+        List<SmsEntity> messages = new ArrayList<>();
+        //each one well within a request, but far from fitting together
+        for(int i = 0; i < 12; i++) messages.add(new SmsEntity(SENDER, repeat(WIDE, 500) + i, i));
+        List<List<SmsEntity>> chunks = SmsPersistWorker.split(messages);
+        assertTrue(chunks.size() > 1);
+        List<SmsEntity> joined = new ArrayList<>();
+        for(List<SmsEntity> chunk : chunks){
+            SmsPersistWorker.toInputData(chunk, false);
+            joined.addAll(chunk);
+        }
+        assertEquals(messages, joined);
+    }
+
+    @Test
+    public void split_nonAsciiMessageNearLimit_fitsAlone(){
+        int chars = (SmsPersistWorker.MAX_BYTES_PER_REQUEST - 64) / 3;
+        List<SmsEntity> messages = new ArrayList<>();
+        messages.add(new SmsEntity(SENDER, "short", 0));
+        messages.add(new SmsEntity(SENDER, repeat("漢", chars), 1));
+        messages.add(new SmsEntity(SENDER, "short", 2));
+        List<List<SmsEntity>> chunks = SmsPersistWorker.split(messages);
+        assertEquals(3, chunks.size());
+        for(List<SmsEntity> chunk : chunks) SmsPersistWorker.toInputData(chunk, false);
+    }
+
+    private static String repeat(String s, int times){
+        StringBuilder builder = new StringBuilder(s.length() * times);
+        for(int i = 0; i < times; i++) builder.append(s);
+        return builder.toString();
+    }
+}
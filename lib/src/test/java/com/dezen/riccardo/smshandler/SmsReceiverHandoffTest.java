@@ -0,0 +1,113 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that an incoming message reaches the database whenever no listener consumes it: both
+ * when nobody is listening, and when the only listener goes away after the message was handed off.
+ * Room refuses main thread queries, so the rows are counted on a background thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsReceiverHandoffTest {
+    private static final String SENDER = "+390000000000";
+    private static final long TIMEOUT_MS = 5000;
+
+    private Context context;
+    private ExecutorService worker;
+    private SmsHandler handler;
+
+    @Before
+    public void setUp(){
+        context = ApplicationProvider.getApplicationContext();
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown(){
+        if(handler != null) handler.setListeningForIncoming(false);
+        worker.shutdownNow();
+        SmsDatabase.closeInstance();
+        context.deleteDatabase(SmsHandler.SMS_HANDLER_LOCAL_DATABASE);
+    }
+
+    //Bodies never repeat, since recent fingerprints outlive the test.
+    private static String uniqueBody(){
+        return SmsHandler.APP_KEY + System.nanoTime();
+    }
+
+    @Test
+    public void noListener_messageIsPersisted() throws Exception{
+        new SmsReceiver().onReceive(context, TestPdus.intent(SENDER, 1, uniqueBody()));
+        assertRows(1);
+    }
+
+    @Test
+    public void listenerRemovedBeforeDelivery_messageIsPersisted() throws Exception{
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        handler = new SmsHandler();
+        handler.setDispatchExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        SmsHandler.OnSmsEventListener listener = new SmsHandler.OnSmsEventListener() {
+            @Override
+            public void onReceive(String from, String message) { }
+
+            @Override
+            public void onSent(int resultCode) { }
+
+            @Override
+            public void onDelivered(int resultCode) { }
+        };
+        handler.addListener(listener);
+        handler.setListeningForIncoming(true);
+        new SmsReceiver().onReceive(context, TestPdus.intent(SENDER, 2, uniqueBody()));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(tasks.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertFalse(tasks.isEmpty());
+        //handed off, but the listener is gone by the time it's delivered
+        handler.removeListener(listener);
+        Runnable task;
+        while((task = tasks.poll()) != null) task.run();
+        assertRows(1);
+    }
+
+    private void assertRows(final int expected) throws Exception{
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int count;
+        do{
+            count = worker.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return SmsDatabase.getInstance(context).access().getCount();
+                }
+            }).get();
+            if(count >= expected) break;
+            Thread.sleep(10);
+        }while(System.currentTimeMillis() < deadline);
+        assertEquals(expected, count);
+    }
+}
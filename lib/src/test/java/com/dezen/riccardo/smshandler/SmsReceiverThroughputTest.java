@@ -0,0 +1,120 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.benchmark.BenchmarkReport;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+import com.dezen.riccardo.smshandler.database.SmsEntity;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures how many messages per second reach the database when bursts of broadcasts are
+ * coalesced into a single commit, compared to one commit per message. Results are written to
+ * build/reports/benchmarks/ReceiverThroughput.json.
+ * Run with ./gradlew :lib:testDebugUnitTest -Pbenchmarks --tests '*ThroughputTest'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsReceiverThroughputTest {
+    private static final int MESSAGES = 5000;
+    private static final int BURST = 50;
+
+    private static final BenchmarkReport report = new BenchmarkReport("ReceiverThroughput");
+
+    private SmsDatabase db;
+    private ExecutorService worker;
+
+    @Before
+    public void setUp(){
+        BenchmarkReport.assumeEnabled();
+        Context context = ApplicationProvider.getApplicationContext();
+        db = Room.inMemoryDatabaseBuilder(context, SmsDatabase.class).build();
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown(){
+        if(worker != null) worker.shutdownNow();
+        if(db != null) db.close();
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception{
+        report.write();
+    }
+
+    /**
+     * Messages queued in bursts of BURST, each burst written by a single writePending. Counts messages.
+     */
+    @Test
+    public void burstsAreCommittedTogether() throws Exception{
+        measure("coalesced", new BenchmarkReport.Iteration() {
+            @Override
+            public void setUp() {
+                db.clearAllTables();
+            }
+
+            @Override
+            public long run() {
+                int commits = 0;
+                for(int i = 0; i < MESSAGES; i += BURST){
+                    for(int j = i; j < i + BURST; j++)
+                        SmsReceiver.enqueueWrite(new SmsEntity("+390000000000", SmsHandler.APP_KEY + j, System.currentTimeMillis()));
+                    if(SmsReceiver.writePending(db, Collections.<SmsEntity>emptyList()) > 0) commits++;
+                }
+                assertEquals(MESSAGES / BURST, commits);
+                assertEquals(MESSAGES, db.access().getCount());
+                return MESSAGES;
+            }
+        });
+    }
+
+    /**
+     * Messages written one per transaction. Counts messages.
+     */
+    @Test
+    public void singleMessageCommits() throws Exception{
+        measure("one per message", new BenchmarkReport.Iteration() {
+            @Override
+            public void setUp() {
+                db.clearAllTables();
+            }
+
+            @Override
+            public long run() {
+                for(int i = 0; i < MESSAGES; i++)
+                    db.access().insert(new SmsEntity("+390000000000", SmsHandler.APP_KEY + i, System.currentTimeMillis()));
+                assertEquals(MESSAGES, db.access().getCount());
+                return MESSAGES;
+            }
+        });
+    }
+
+    //Room refuses main thread queries, so every measurement runs on the worker.
+    private void measure(final String name, final BenchmarkReport.Iteration iteration) throws Exception{
+        worker.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                report.measure(name, "messages=" + MESSAGES + ",burst=" + BURST, 1, 5, iteration);
+                return null;
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,90 @@
+package com.dezen.riccardo.smshandler;
+
+import android.app.Activity;
+import android.telephony.SmsManager;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.database.OutboxEntity;
+import com.dezen.riccardo.smshandler.database.SmsDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how SmsSendQueue takes over the outbox left by a previous process, and how it schedules
+ * the retries of failed messages. Retries are computed from a given time, so no clock is involved.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsSendQueueTest {
+    private static final String DESTINATION = "+390000000000";
+    private static final long NOW = 1000000;
+
+    private SmsDatabase db;
+
+    @Before
+    public void setUp(){
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), SmsDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+    }
+
+    @After
+    public void tearDown(){
+        db.close();
+    }
+
+    @Test
+    public void recover_sendsAgainMessagesWhoseResultWasLost(){
+        OutboxEntity handed = new OutboxEntity(DESTINATION, SmsHandler.APP_KEY + "handed", 1);
+        handed.state = OutboxEntity.STATE_SENDING;
+        handed.attempts = 2;
+        long handedId = db.outbox().insert(handed);
+        long pendingId = db.outbox().insert(new OutboxEntity(DESTINATION, SmsHandler.APP_KEY + "pending", 2));
+        assertEquals(1, db.outbox().getPendingCount());
+
+        assertEquals(2, SmsSendQueue.recover(db));
+        OutboxEntity[] pending = db.outbox().loadPending(System.currentTimeMillis(), 10);
+        assertEquals(2, pending.length);
+        assertEquals(handedId, pending[0].id);
+        //the lost attempt still counts towards MAX_ATTEMPTS
+        assertEquals(2, pending[0].attempts);
+        assertEquals(pendingId, pending[1].id);
+    }
+
+    @Test
+    public void transientFailures_areRetriedWithDoublingDelay(){
+        long[] expected = {5000, 10000, 20000, 40000};
+        for(int attempts = 1; attempts < SmsSendQueue.MAX_ATTEMPTS; attempts++){
+            assertEquals(SmsSendQueue.BASE_RETRY_DELAY_MS << (attempts - 1), expected[attempts - 1]);
+            assertEquals(NOW + expected[attempts - 1],
+                    SmsSendQueue.retryAt(SmsManager.RESULT_ERROR_NO_SERVICE, attempts, NOW));
+        }
+    }
+
+    @Test
+    public void retryDelay_isCapped(){
+        assertEquals(SmsSendQueue.MAX_RETRY_DELAY_MS, SmsSendQueue.retryDelay(8));
+        assertEquals(SmsSendQueue.MAX_RETRY_DELAY_MS, SmsSendQueue.retryDelay(100));
+    }
+
+    @Test
+    public void lastAttempt_isGivenUpOn(){
+        assertEquals(5, SmsSendQueue.MAX_ATTEMPTS);
+        assertEquals(-1, SmsSendQueue.retryAt(SmsManager.RESULT_ERROR_GENERIC_FAILURE, SmsSendQueue.MAX_ATTEMPTS, NOW));
+    }
+
+    @Test
+    public void permanentFailures_areNotRetried(){
+        assertEquals(-1, SmsSendQueue.retryAt(SmsManager.RESULT_ERROR_NULL_PDU, 1, NOW));
+        assertEquals(-1, SmsSendQueue.retryAt(Activity.RESULT_CANCELED, 1, NOW));
+    }
+}
@@ -0,0 +1,89 @@
+package com.dezen.riccardo.smshandler;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSubscriptionManager;
+import org.robolectric.shadows.SubscriptionInfoBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks the subscriptions chosen by each strategy of SubscriptionRouter on a dual-SIM device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SubscriptionRouterTest {
+    private ShadowSubscriptionManager subscriptions;
+    private SubscriptionRouter router;
+
+    @Before
+    public void setUp(){
+        Context context = ApplicationProvider.getApplicationContext();
+        shadowOf((Application)context).grantPermissions(Manifest.permission.READ_PHONE_STATE);
+        subscriptions = shadowOf((SubscriptionManager)context.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE));
+        setActive(3, 7);
+        router = new SubscriptionRouter(context);
+    }
+
+    @Test
+    public void roundRobin_alternatesSubscriptions(){
+        assertEquals(Arrays.asList(3, 7, 3, 7), choose("+391", "+391", "+392", "+393"));
+    }
+
+    @Test
+    public void leastRecentlyUsed_prefersUnusedSubscription(){
+        router.setStrategy(SubscriptionRouter.STRATEGY_STICKY);
+        router.choose("+391");
+        router.setStrategy(SubscriptionRouter.STRATEGY_LEAST_RECENTLY_USED);
+        assertEquals(Arrays.asList(7, 3, 7), choose("+391", "+391", "+391"));
+    }
+
+    @Test
+    public void sticky_keepsRecipientOnSameSubscription(){
+        router.setStrategy(SubscriptionRouter.STRATEGY_STICKY);
+        assertEquals(Arrays.asList(3, 7, 3, 7), choose("+391", "+392", "+391", "+392"));
+    }
+
+    @Test
+    public void singleSubscription_usesDefault(){
+        setActive(3);
+        router = new SubscriptionRouter(ApplicationProvider.<Context>getApplicationContext());
+        assertEquals(SubscriptionRouter.NO_SUBSCRIPTION, router.choose("+391"));
+    }
+
+    @Test
+    public void withoutPhoneState_usesDefault(){
+        Context context = ApplicationProvider.getApplicationContext();
+        shadowOf((Application)context).denyPermissions(Manifest.permission.READ_PHONE_STATE);
+        router = new SubscriptionRouter(context);
+        assertEquals(SubscriptionRouter.NO_SUBSCRIPTION, router.choose("+391"));
+    }
+
+    private List<Integer> choose(String... destinations){
+        List<Integer> chosen = new ArrayList<>();
+        for(String destination : destinations) chosen.add(router.choose(destination));
+        return chosen;
+    }
+
+    private void setActive(int... ids){
+        SubscriptionInfo[] infos = new SubscriptionInfo[ids.length];
+        for(int i = 0; i < ids.length; i++) infos[i] = SubscriptionInfoBuilder.newBuilder().setId(ids[i]).buildSubscriptionInfo();
+        subscriptions.setActiveSubscriptionInfos(infos);
+    }
+}
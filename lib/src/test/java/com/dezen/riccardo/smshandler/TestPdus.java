@@ -0,0 +1,87 @@
+package com.dezen.riccardo.smshandler;
+
+import android.content.Intent;
+import android.provider.Telephony;
+
+/**
+ * Builds the SMS_RECEIVED broadcasts the platform would send, with 3GPP SMS-DELIVER pdus in the
+ * GSM 7 bit alphabet. Only the characters whose GSM code equals their ASCII code are supported:
+ * letters, digits, space and the punctuation of SmsHandler.APP_KEY among others.
+ */
+class TestPdus {
+    private TestPdus(){ }
+
+    /**
+     * Method building a broadcast carrying one pdu per body, all from the same sender, as the
+     * platform does for the segments of a concatenated message.
+     * @param address the international originating address, starting with '+'.
+     * @param seconds the seconds of the service center timestamp, between 0 and 59.
+     * @param bodies the bodies of the segments, at most 160 characters each.
+     * @return the SMS_RECEIVED intent.
+     */
+    static Intent intent(String address, int seconds, String... bodies){
+        Object[] pdus = new Object[bodies.length];
+        for(int i = 0; i < bodies.length; i++) pdus[i] = deliver(address, seconds, bodies[i]);
+        Intent intent = new Intent(Telephony.Sms.Intents.SMS_RECEIVED_ACTION);
+        intent.putExtra("pdus", pdus);
+        intent.putExtra("format", "3gpp");
+        //spares the lookup of the default subscription
+        intent.putExtra("subscription", 1);
+        return intent;
+    }
+
+    /**
+     * Method building a SMS-DELIVER pdu, preceded by an empty service center address.
+     */
+    static byte[] deliver(String address, int seconds, String body){
+        String digits = address.startsWith("+") ? address.substring(1) : address;
+        byte[] septets = pack(body);
+        byte[] pdu = new byte[1 + 1 + 2 + (digits.length() + 1) / 2 + 2 + 7 + 1 + septets.length];
+        int i = 0;
+        //no service center address
+        pdu[i++] = 0;
+        //SMS-DELIVER, no more messages to send
+        pdu[i++] = 0x04;
+        pdu[i++] = (byte)digits.length();
+        //international number
+        pdu[i++] = (byte)0x91;
+        i = bcd(digits, pdu, i);
+        //protocol identifier and default alphabet
+        pdu[i++] = 0;
+        pdu[i++] = 0;
+        //2019-01-01 00:00:ss UTC
+        i = bcd("190101000000", pdu, i);
+        pdu[i - 1] = swapped(seconds);
+        pdu[i++] = 0;
+        pdu[i++] = (byte)body.length();
+        System.arraycopy(septets, 0, pdu, i, septets.length);
+        return pdu;
+    }
+
+    private static int bcd(String digits, byte[] out, int offset){
+        for(int d = 0; d < digits.length(); d += 2){
+            int low = digits.charAt(d) - '0';
+            int high = d + 1 < digits.length() ? digits.charAt(d + 1) - '0' : 0xF;
+            out[offset++] = (byte)((high << 4) | low);
+        }
+        return offset;
+    }
+
+    private static byte swapped(int value){
+        return (byte)(((value % 10) << 4) | (value / 10));
+    }
+
+    private static byte[] pack(String body){
+        if(body.length() > 160) throw new IllegalArgumentException("Body longer than one segment");
+        byte[] out = new byte[(body.length() * 7 + 7) / 8];
+        for(int i = 0; i < body.length(); i++){
+            char c = body.charAt(i);
+            if(c < ' ' || c > 'z' || c == '@' || c == '$' || c == '_' || (c >= '[' && c <= '`'))
+                throw new IllegalArgumentException("Unsupported character " + c);
+            int bit = i * 7;
+            out[bit / 8] |= (byte)(c << (bit % 8));
+            if(bit % 8 > 1) out[bit / 8 + 1] |= (byte)(c >> (8 - bit % 8));
+        }
+        return out;
+    }
+}
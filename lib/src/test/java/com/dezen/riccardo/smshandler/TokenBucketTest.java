@@ -0,0 +1,48 @@
+package com.dezen.riccardo.smshandler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pacing of TokenBucket against a clock moved by hand.
+ */
+public class TokenBucketTest {
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    private static class ManualClock implements TokenBucket.Clock {
+        long now;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+
+    @Test
+    public void burst_goesThrough_thenWaitsForOneToken(){
+        TokenBucket bucket = new TokenBucket(3, 1, clock);
+        for(int i = 0; i < 3; i++) assertEquals(0, bucket.tryAcquire());
+        assertEquals(SECOND, bucket.tryAcquire());
+        clock.now += SECOND / 4;
+        assertEquals(SECOND * 3 / 4, bucket.tryAcquire());
+    }
+
+    @Test
+    public void tokens_refillAtRate_upToCapacity(){
+        TokenBucket bucket = new TokenBucket(2, 2, clock);
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        clock.now += SECOND / 2;
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+        //a long pause doesn't allow more than a full burst
+        clock.now += 60 * SECOND;
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+}
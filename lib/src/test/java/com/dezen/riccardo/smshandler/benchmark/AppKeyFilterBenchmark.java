@@ -0,0 +1,76 @@
+package com.dezen.riccardo.smshandler.benchmark;
+
+import com.dezen.riccardo.smshandler.SmsHandler;
+import com.dezen.riccardo.smshandler.SmsUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old contains based APP_KEY filter with the prefix matcher over a mix of
+ * matching and non-matching message bodies.
+ * Run through the main method from the IDE, with the unit test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppKeyFilterBenchmark {
+    private static final int BODIES = 1024;
+
+    //Percentage of bodies carrying the APP_KEY.
+    @Param({"1", "50"})
+    public int matchingPercent;
+
+    private String[] bodies;
+
+    @Setup
+    public void setUp(){
+        Random random = new Random(42);
+        bodies = new String[BODIES];
+        for(int i = 0; i < BODIES; i++){
+            StringBuilder sb = new StringBuilder();
+            if(random.nextInt(100) < matchingPercent) sb.append(SmsHandler.APP_KEY);
+            int length = 20 + random.nextInt(140);
+            while(sb.length() < length) sb.append((char)('a' + random.nextInt(26)));
+            bodies[i] = sb.toString();
+        }
+    }
+
+    @Benchmark
+    public int contains(){
+        int matches = 0;
+        for(String body : bodies) if(body.contains(SmsHandler.APP_KEY)) matches++;
+        return matches;
+    }
+
+    @Benchmark
+    public int prefix(){
+        int matches = 0;
+        for(String body : bodies) if(SmsUtils.hasAppKey(body)) matches++;
+        return matches;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AppKeyFilterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
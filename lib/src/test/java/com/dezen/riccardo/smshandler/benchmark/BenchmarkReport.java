@@ -0,0 +1,106 @@
+package com.dezen.riccardo.smshandler.benchmark;
+
+import org.junit.Assume;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal harness for the benchmarks which need Robolectric, and therefore can't run under JMH's
+ * forked JVMs. Every benchmark runs its warmup iterations, then its measured ones, and reports
+ * the throughput of each. Results of a suite are written as JSON to
+ * [benchmark.reportDir]/[suite].json, one result per line so that reports of two releases can be
+ * diffed directly. Benchmarks only run when the benchmarks system property is true, i.e. when
+ * gradle is run with -Pbenchmarks.
+ */
+public class BenchmarkReport {
+    private static final String DEFAULT_REPORT_DIR = "build/reports/benchmarks";
+
+    /**
+     * A single iteration of a benchmark. setUp is not measured.
+     */
+    public static abstract class Iteration {
+        public void setUp() throws Exception { }
+
+        /**
+         * @return the number of operations performed.
+         */
+        public abstract long run() throws Exception;
+    }
+
+    private final String suite;
+    private final List<String> results = new ArrayList<>();
+
+    /**
+     * @param suite the name of the suite, used as the name of the report.
+     */
+    public BenchmarkReport(String suite){
+        this.suite = suite;
+    }
+
+    /**
+     * Method skipping the calling test unless benchmarks were requested.
+     */
+    public static void assumeEnabled(){
+        Assume.assumeTrue("Benchmarks disabled, run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+    }
+
+    /**
+     * Method running a benchmark and recording its throughput.
+     * @param name the name of the benchmark.
+     * @param params a short description of its parameters, e.g. "rows=10000".
+     * @param warmups the number of iterations run before measuring.
+     * @param iterations the number of measured iterations.
+     * @param iteration the iteration to be run.
+     * @return the median throughput, in operations per second.
+     */
+    public double measure(String name, String params, int warmups, int iterations, Iteration iteration) throws Exception{
+        for(int i = 0; i < warmups; i++){
+            iteration.setUp();
+            iteration.run();
+        }
+        double[] scores = new double[iterations];
+        for(int i = 0; i < iterations; i++){
+            iteration.setUp();
+            long start = System.nanoTime();
+            long ops = iteration.run();
+            scores[i] = ops / ((System.nanoTime() - start) / 1e9);
+        }
+        Arrays.sort(scores);
+        double median = scores[iterations / 2];
+        results.add(String.format(Locale.US,
+                "{\"benchmark\":\"%s\",\"params\":\"%s\",\"unit\":\"ops/s\",\"iterations\":%d,\"median\":%.1f,\"min\":%.1f,\"max\":%.1f}",
+                name, params, iterations, median, scores[0], scores[iterations - 1]));
+        System.out.println(suite + "." + name + " [" + params + "]: " + String.format(Locale.US, "%.1f ops/s", median));
+        return median;
+    }
+
+    /**
+     * Method writing the results recorded so far.
+     */
+    public void write() throws IOException{
+        if(results.isEmpty()) return;
+        File dir = new File(System.getProperty("benchmark.reportDir", DEFAULT_REPORT_DIR));
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, suite + ".json")), "UTF-8");
+        try{
+            writer.write("{\"suite\":\"" + suite + "\",\"java\":\"" + System.getProperty("java.version")
+                    + "\",\"os\":\"" + System.getProperty("os.name") + " " + System.getProperty("os.arch") + "\",\"results\":[\n");
+            for(int i = 0; i < results.size(); i++){
+                writer.write(results.get(i));
+                writer.write(i < results.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]}\n");
+        }
+        finally{
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.dezen.riccardo.smshandler.benchmark;
+
+import com.dezen.riccardo.smshandler.SmsHandler;
+import com.dezen.riccardo.smshandler.SmsPayload;
+import com.dezen.riccardo.smshandler.SmsPayloadCodec;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reports how many segments each logical message of a payload corpus takes when sent as plain
+ * "key=value" text, as a SmsPayloadCodec text payload and as a data sms. Output is CSV, one row per
+ * message followed by a row with the average segments and how many messages fit a single data sms;
+ * data sms can't be concatenated, those not fitting are reported with 0 segments.
+ * Run through the main method with the unit test classpath, optionally passing the path of another
+ * corpus in the format of payload-corpus.txt.
+ */
+public class PayloadSegmentsBenchmark {
+    private static final String DEFAULT_CORPUS = "/payload-corpus.txt";
+
+    public static void main(String[] args) throws IOException {
+        InputStream in = args.length > 0 ? new FileInputStream(args[0])
+                : PayloadSegmentsBenchmark.class.getResourceAsStream(DEFAULT_CORPUS);
+        List<String> lines = readCorpus(in);
+        System.out.println("message,plain_chars,plain_segments,codec_chars,codec_segments,data_bytes,data_segments");
+        int plainTotal = 0, codecTotal = 0, dataCount = 0;
+        for(int i = 0; i < lines.size(); i++){
+            String[] fields = lines.get(i).split("\t");
+            String plain = plainText(fields);
+            String codec = SmsPayloadCodec.encodeText(parse(fields));
+            byte[] data = SmsPayloadCodec.encodeBinary(parse(fields));
+            int plainSegments = SmsPayloadCodec.segments(plain);
+            int codecSegments = SmsPayloadCodec.segments(codec);
+            int dataSegments = data.length <= SmsPayloadCodec.MAX_DATA_BYTES ? 1 : 0;
+            plainTotal += plainSegments;
+            codecTotal += codecSegments;
+            dataCount += dataSegments;
+            System.out.println(i + "," + plain.length() + "," + plainSegments + "," + codec.length() + ","
+                    + codecSegments + "," + data.length + "," + dataSegments);
+        }
+        int n = lines.size();
+        System.out.println("average,," + ratio(plainTotal, n) + ",," + ratio(codecTotal, n) + ",,"
+                + dataCount + "/" + n);
+    }
+
+    private static List<String> readCorpus(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try{
+            String line;
+            while((line = reader.readLine()) != null){
+                if(!line.isEmpty() && !line.startsWith("#")) lines.add(line);
+            }
+        }
+        finally{
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * @return the message as the apps send it without the codec: APP_KEY followed by the fields,
+     * numbers in decimal and bytes in hex.
+     */
+    private static String plainText(String[] fields){
+        StringBuilder sb = new StringBuilder(SmsHandler.APP_KEY);
+        for(int i = 0; i < fields.length; i++){
+            if(i > 0) sb.append(';');
+            int split = separator(fields[i]);
+            sb.append(fields[i], 0, split).append('=').append(fields[i], split + 1, fields[i].length());
+        }
+        return sb.toString();
+    }
+
+    private static SmsPayload parse(String[] fields){
+        SmsPayload payload = new SmsPayload();
+        for(String field : fields){
+            int split = separator(field);
+            String key = field.substring(0, split);
+            String value = field.substring(split + 1);
+            switch(field.charAt(split)){
+                case ':':
+                    payload.putLong(key, Long.parseLong(value));
+                    break;
+                case '*':
+                    payload.putBytes(key, hex(value));
+                    break;
+                default:
+                    payload.putString(key, value);
+            }
+        }
+        return payload;
+    }
+
+    private static int separator(String field){
+        for(int i = 0; i < field.length(); i++){
+            char c = field.charAt(i);
+            if(c == '=' || c == ':' || c == '*') return i;
+        }
+        throw new IllegalArgumentException("Malformed field " + field);
+    }
+
+    private static byte[] hex(String value){
+        byte[] bytes = new byte[value.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte)Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    private static String ratio(int total, int count){
+        return count == 0 ? "" : String.format(Locale.US, "%.2f", (double)total / count);
+    }
+}
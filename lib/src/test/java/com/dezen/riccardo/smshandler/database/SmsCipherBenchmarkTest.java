@@ -0,0 +1,132 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.SmsHandler;
+import com.dezen.riccardo.smshandler.benchmark.BenchmarkReport;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Overhead of store encryption on the insert and drain paths, against plaintext rows, into an
+ * in-memory database. Results are written to build/reports/benchmarks/StoreEncryption.json.
+ * Robolectric has no Keystore, so the data key is set directly: the one-off unwrap is not measured.
+ * Run with ./gradlew :lib:testDebugUnitTest -Pbenchmarks --tests '*BenchmarkTest'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsCipherBenchmarkTest {
+    private static final String SENDER = "+390000000000";
+    private static final int ROWS = 10000;
+    private static final int BATCH = 50;
+
+    private static final BenchmarkReport report = new BenchmarkReport("StoreEncryption");
+
+    private ExecutorService worker;
+    private SmsDatabase db;
+
+    @Before
+    public void setUp(){
+        BenchmarkReport.assumeEnabled();
+        worker = Executors.newSingleThreadExecutor();
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), SmsDatabase.class).build();
+    }
+
+    @After
+    public void tearDown(){
+        SmsCipher.setDataKey(null);
+        if(worker != null) worker.shutdownNow();
+        if(db != null) db.close();
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception{
+        report.write();
+    }
+
+    @Test
+    public void plaintext() throws Exception{
+        SmsCipher.setDataKey(null);
+        insertAndDrain("plaintext");
+    }
+
+    @Test
+    public void encrypted() throws Exception{
+        SmsCipher.setDataKey(new SecretKeySpec(new byte[32], "AES"));
+        insertAndDrain("encrypted");
+    }
+
+    /**
+     * Messages written in batches, as the receiver's WriteTask does, then drained with the default
+     * page size. Each counts messages.
+     */
+    private void insertAndDrain(final String mode) throws Exception{
+        final List<List<SmsEntity>> batches = new ArrayList<>();
+        for(int i = 0; i < ROWS; i += BATCH){
+            List<SmsEntity> batch = new ArrayList<>(BATCH);
+            for(int j = i; j < i + BATCH; j++)
+                batch.add(new SmsEntity(SENDER, SmsHandler.APP_KEY + " a message of typical length, number " + j, j));
+            batches.add(batch);
+        }
+        worker.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                report.measure("insert", mode + ",rows=" + ROWS + ",batch=" + BATCH, 2, 5, new BenchmarkReport.Iteration() {
+                    @Override
+                    public void setUp() {
+                        db.access().deleteSmsUpTo(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public long run() {
+                        for(final List<SmsEntity> batch : batches){
+                            db.runInTransaction(new Runnable() {
+                                @Override
+                                public void run() {
+                                    db.insertSms(batch);
+                                }
+                            });
+                        }
+                        return ROWS;
+                    }
+                });
+                report.measure("drain", mode + ",rows=" + ROWS, 2, 5, new BenchmarkReport.Iteration() {
+                    @Override
+                    public void setUp() {
+                        for(List<SmsEntity> batch : batches) db.insertSms(batch);
+                    }
+
+                    @Override
+                    public long run() {
+                        int drained = 0;
+                        SmsEntity[] page;
+                        do{
+                            page = db.takeSmsPage(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+                            drained += page.length;
+                        }while(page.length == SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+                        assertEquals(ROWS, drained);
+                        return drained;
+                    }
+                });
+                return null;
+            }
+        }).get();
+    }
+}
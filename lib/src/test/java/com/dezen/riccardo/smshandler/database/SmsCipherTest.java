@@ -0,0 +1,115 @@
+package com.dezen.riccardo.smshandler.database;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.SmsHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that bodies are stored sealed and read back in plaintext, alongside plaintext rows.
+ * Robolectric has no Keystore, so the data key is set directly.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsCipherTest {
+    private static final String SENDER = "+390000000000";
+
+    private SmsDatabase db;
+
+    @Before
+    public void setUp(){
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), SmsDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+    }
+
+    @After
+    public void tearDown(){
+        SmsCipher.setDataKey(null);
+        db.close();
+    }
+
+    @Test
+    public void sealedBodies_areStoredEncrypted_andReadInPlaintext(){
+        db.insertSms(new SmsEntity(SENDER, SmsHandler.APP_KEY + "plain", 1));
+        SmsCipher.setDataKey(new SecretKeySpec(new byte[32], "AES"));
+        SmsEntity sms = new SmsEntity(SENDER, SmsHandler.APP_KEY + "secret", 2);
+        db.insertSms(Arrays.asList(sms));
+        //the caller's message is left as it is
+        assertEquals(SmsHandler.APP_KEY + "secret", sms.body);
+        SmsEntity[] stored = db.access().loadAllSms();
+        assertEquals(SmsHandler.APP_KEY + "plain", stored[0].body);
+        assertTrue(stored[1].body.startsWith(SmsCipher.ENCRYPTED_PREFIX));
+        assertFalse(stored[1].body.contains("secret"));
+        SmsEntity[] page = db.takeSmsPage(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+        assertEquals(2, page.length);
+        assertEquals(SmsHandler.APP_KEY + "plain", page[0].body);
+        assertEquals(SmsHandler.APP_KEY + "secret", page[1].body);
+    }
+
+    @Test
+    public void bodiesSealedWithAnotherKey_areDropped(){
+        SmsCipher.setDataKey(new SecretKeySpec(new byte[32], "AES"));
+        db.insertSms(new SmsEntity(SENDER, SmsHandler.APP_KEY + "lost", 1));
+        byte[] other = new byte[32];
+        other[0] = 1;
+        SmsCipher.setDataKey(new SecretKeySpec(other, "AES"));
+        db.insertSms(new SmsEntity(SENDER, SmsHandler.APP_KEY + "kept", 2));
+        SmsEntity[] page = db.takeSmsPage(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+        assertEquals(1, page.length);
+        assertEquals(SmsHandler.APP_KEY + "kept", page[0].body);
+        assertEquals(0, db.access().getCount());
+    }
+
+    @Test
+    public void undecryptableRows_doNotStopTheDrain(){
+        SmsCipher.setDataKey(new SecretKeySpec(new byte[32], "AES"));
+        db.insertSms(new SmsEntity(SENDER, SmsHandler.APP_KEY + "lost", 1));
+        byte[] other = new byte[32];
+        other[0] = 1;
+        SmsCipher.setDataKey(new SecretKeySpec(other, "AES"));
+        for(int i = 0; i < 4; i++) db.insertSms(new SmsEntity(SENDER, SmsHandler.APP_KEY + i, 2 + i));
+        List<SmsEntity> page = new ArrayList<>();
+        //the first page is short of one message, but full of taken rows
+        assertEquals(2, db.takeSmsPage(2, page));
+        assertEquals(1, page.size());
+        assertEquals(2, db.takeSmsPage(2, page));
+        assertEquals(1, db.takeSmsPage(2, page));
+        assertEquals(4, page.size());
+    }
+
+    @Test
+    public void unreachableKey_keepsTheRows(){
+        SmsCipher.setDataKey(new SecretKeySpec(new byte[32], "AES"));
+        db.insertSms(new SmsEntity(SENDER, SmsHandler.APP_KEY + "kept", 1));
+        //no key and no Keystore: opening fails without dropping anything
+        SmsCipher.setDataKey(null);
+        try{
+            db.takeSmsPage(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE);
+            fail();
+        }
+        catch(IllegalStateException e){
+            assertEquals(1, db.access().getCount());
+        }
+        SmsCipher.setDataKey(new SecretKeySpec(new byte[32], "AES"));
+        assertEquals(SmsHandler.APP_KEY + "kept", db.takeSmsPage(SmsHandler.DEFAULT_DRAIN_PAGE_SIZE)[0].body);
+    }
+}
@@ -0,0 +1,106 @@
+package com.dezen.riccardo.smshandler.database;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.dezen.riccardo.smshandler.SmsHandler;
+import com.dezen.riccardo.smshandler.benchmark.BenchmarkReport;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Compares the per-message persistence throughput of building a new database for every message,
+ * as the receiver used to do, against going through the shared instance. Results are written to
+ * build/reports/benchmarks/DatabaseInstance.json. Room refuses main thread queries, so every
+ * measurement runs on a background thread.
+ * Run with ./gradlew :lib:testDebugUnitTest -Pbenchmarks --tests '*BenchmarkTest'
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SmsDatabaseBenchmarkTest {
+    private static final int MESSAGES = 200;
+
+    private static final BenchmarkReport report = new BenchmarkReport("DatabaseInstance");
+
+    private Context context;
+    private ExecutorService worker;
+
+    @Before
+    public void setUp(){
+        context = ApplicationProvider.getApplicationContext();
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown(){
+        worker.shutdownNow();
+        SmsDatabase.closeInstance();
+        context.deleteDatabase(SmsHandler.SMS_HANDLER_LOCAL_DATABASE);
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception{
+        report.write();
+    }
+
+    @Test
+    public void getInstance_returnsSameInstance(){
+        assertSame(SmsDatabase.getInstance(context), SmsDatabase.getInstance(context));
+    }
+
+    /**
+     * Messages written one at a time, each through its own database or through the shared one.
+     * Each counts messages.
+     */
+    @Test
+    public void perMessage_builderVsSharedInstance() throws Exception{
+        BenchmarkReport.assumeEnabled();
+        worker.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                report.measure("persist", "instance=builder,messages=" + MESSAGES, 1, 5, new BenchmarkReport.Iteration() {
+                    @Override
+                    public long run() {
+                        for(int i = 0; i < MESSAGES; i++){
+                            SmsDatabase db = Room.databaseBuilder(context, SmsDatabase.class, SmsHandler.SMS_HANDLER_LOCAL_DATABASE)
+                                    .enableMultiInstanceInvalidation()
+                                    .build();
+                            try{
+                                db.access().insert(new SmsEntity("+390000000000", SmsHandler.APP_KEY + i, System.currentTimeMillis()));
+                            }
+                            finally{
+                                db.close();
+                            }
+                        }
+                        return MESSAGES;
+                    }
+                });
+                report.measure("persist", "instance=shared,messages=" + MESSAGES, 1, 5, new BenchmarkReport.Iteration() {
+                    @Override
+                    public long run() {
+                        for(int i = 0; i < MESSAGES; i++){
+                            SmsDatabase db = SmsDatabase.getInstance(context);
+                            db.access().insert(new SmsEntity("+390000000000", SmsHandler.APP_KEY + i, System.currentTimeMillis()));
+                        }
+                        return MESSAGES;
+                    }
+                });
+                return null;
+            }
+        }).get();
+    }
+}
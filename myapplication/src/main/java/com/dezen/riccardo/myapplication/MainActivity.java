@@ -42,6 +42,8 @@ public class MainActivity extends AppCompatActivity implements SmsHandler.OnSmsE
         setContentView(R.layout.activity_main);
         smsHandler = new SmsHandler();
         smsHandler.registerReceiver(getApplicationContext(), true, true, true);
+        //callbacks update the views, they need to run on the main thread
+        smsHandler.setDispatchExecutor(SmsHandler.mainThreadExecutor());
         smsHandler.setListener(this);
 
         button_send = findViewById(R.id.button_send);
@@ -146,7 +148,7 @@ public class MainActivity extends AppCompatActivity implements SmsHandler.OnSmsE
         }
         @Override
         protected Void doInBackground(String... strings) {
-            smsHandler.fetchUnreadMessages(context);
+            smsHandler.drainUnreadMessages(context);
             return null;
         }
     }